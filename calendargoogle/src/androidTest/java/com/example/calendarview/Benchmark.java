@@ -0,0 +1,46 @@
+package com.example.calendarview;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Times code for the timing tests. The numbers depend on the device, so the
+ * tests log them instead of asserting on them; filter logcat on "Benchmark"
+ * to compare runs before and after a change.
+ */
+class Benchmark {
+    private static final String TAG = "Benchmark";
+
+    private static final int WARMUP_RUNS = 5;
+
+    /**
+     * Returns the median time of one run of task, in nanoseconds, after a
+     * few runs to let the JIT settle.
+     */
+    static long median(int runs, Runnable task) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            task.run();
+        }
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[runs / 2];
+    }
+
+    static void report(String name, long nanos) {
+        Log.i(TAG, name + ": " + nanos / 1000 + "." + nanos / 100 % 10 + "us");
+    }
+
+    /**
+     * Logs how many items a second a run that took nanos got through.
+     */
+    static void reportRate(String name, int items, long nanos) {
+        Log.i(TAG, name + ": " + items + " in " + nanos / 1000000 + "ms, "
+                + items * 1000000000L / Math.max(1, nanos) + "/s");
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.calendarview;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+
+/**
+ * Runs CalendarProvider on an isolated copy of its database.
+ */
+public class CalendarProviderTest extends ProviderTestCase2<CalendarProvider> {
+    private static final int FIRST_DAY = 2457000;
+
+    public CalendarProviderTest() {
+        super(CalendarProvider.class, CalendarProvider.AUTHORITY);
+    }
+
+    /**
+     * Times bulkInsert against inserting the same rows one at a time.
+     */
+    public void testBulkInsertRate() {
+        ContentResolver resolver = getMockContentResolver();
+        for (int count : new int[] {100, 1000, 5000}) {
+            ContentValues[] rows = new ContentValues[count];
+            for (int i = 0; i < count; i++) {
+                rows[i] = event(i, FIRST_DAY + i % 28, 9 * 60 + i % 8 * 60, 60);
+            }
+
+            resolver.delete(CalendarProvider.CONTENT_URI, null, null);
+            long start = System.nanoTime();
+            for (ContentValues row : rows) {
+                resolver.insert(CalendarProvider.CONTENT_URI, row);
+            }
+            long perRow = System.nanoTime() - start;
+            assertEquals(count, countEvents(resolver));
+
+            resolver.delete(CalendarProvider.CONTENT_URI, null, null);
+            start = System.nanoTime();
+            int inserted = resolver.bulkInsert(CalendarProvider.CONTENT_URI, rows);
+            long bulk = System.nanoTime() - start;
+            assertEquals(count, inserted);
+            assertEquals(count, countEvents(resolver));
+
+            Benchmark.reportRate("CalendarProvider " + count + " rows, insert", count, perRow);
+            Benchmark.reportRate("CalendarProvider " + count + " rows, bulkInsert", count, bulk);
+        }
+    }
+
+    /**
+     * An empty RRULE isn't a recurrence, so growing the instances window
+     * doesn't give the event more instances.
+     */
+    public void testEmptyRuleStaysSingleInstance() {
+        ContentResolver resolver = getMockContentResolver();
+        ContentValues values = event(1, FIRST_DAY, 9 * 60, 60);
+        values.put(CalendarProvider.RRULE, "");
+        resolver.insert(CalendarProvider.CONTENT_URI, values);
+        // Each of these reaches past the window and grows it
+        for (int offset : new int[] {0, -2000, 2000, 8000}) {
+            countInstances(resolver, FIRST_DAY + offset);
+        }
+        assertEquals(1, countInstances(resolver, FIRST_DAY));
+    }
+
+    /**
+     * Negative paging values count as 0 and ones that aren't numbers are
+     * rejected.
+     */
+    public void testSearchPaging() {
+        ContentResolver resolver = getMockContentResolver();
+        for (int i = 0; i < 5; i++) {
+            resolver.insert(CalendarProvider.CONTENT_URI, event(i, FIRST_DAY, 9 * 60, 60));
+        }
+        assertEquals(2, countMatches(resolver, "2", "-3"));
+        assertEquals(2, countMatches(resolver, "2", "3"));
+        assertEquals(0, countMatches(resolver, "-1", null));
+        try {
+            countMatches(resolver, "two", null);
+            fail("Accepted a limit of two");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            countMatches(resolver, "2", "1; DROP TABLE events");
+            fail("Accepted a bad offset");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static int countMatches(ContentResolver resolver, String limit, String offset) {
+        Uri.Builder builder = Uri.withAppendedPath(CalendarProvider.SEARCH_URI, "Event")
+                .buildUpon().appendQueryParameter(CalendarProvider.LIMIT, limit);
+        if (offset != null) {
+            builder.appendQueryParameter(CalendarProvider.OFFSET, offset);
+        }
+        Cursor c = resolver.query(builder.build(), new String[] {CalendarProvider.ID}, null,
+                null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int countInstances(ContentResolver resolver, int julianDay) {
+        Uri uri = Uri.withAppendedPath(CalendarProvider.CONTENT_DAYS_URI,
+                julianDay + "/" + julianDay);
+        Cursor c = resolver.query(uri, new String[] {CalendarProvider.ID}, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int countEvents(ContentResolver resolver) {
+        Cursor c = resolver.query(CalendarProvider.CONTENT_URI,
+                new String[] {CalendarProvider.ID}, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the row ImportEntries writes for a single event, in UTC.
+     */
+    /* package */ static ContentValues event(long eventId, int julianDay, int startMinute,
+            int minutes) {
+        long start = (julianDay - Time.EPOCH_JULIAN_DAY) * DateUtils.DAY_IN_MILLIS
+                + startMinute * DateUtils.MINUTE_IN_MILLIS;
+        long end = start + minutes * DateUtils.MINUTE_IN_MILLIS;
+        ContentValues values = new ContentValues();
+        values.put(CalendarProvider.EVENT, "Event " + eventId);
+        values.put(CalendarProvider.LOCATION, "Room " + eventId % 10);
+        values.put(CalendarProvider.DESCRIPTION, "");
+        values.put(CalendarProvider.START, start);
+        values.put(CalendarProvider.END, end);
+        values.put(CalendarProvider.EVENT_ID, eventId);
+        values.put(CalendarProvider.CALENDAR_ID, 1);
+        values.put(CalendarProvider.START_DAY, julianDay);
+        values.put(CalendarProvider.END_DAY, julianDay + (startMinute + minutes) / (24 * 60));
+        values.put(CalendarProvider.START_TIME, startMinute);
+        values.put(CalendarProvider.END_TIME, (startMinute + minutes) % (24 * 60));
+        values.put(CalendarProvider.TIMEZONE, Time.TIMEZONE_UTC);
+        return values;
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.calendarview;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.format.DateUtils;
+import android.util.SparseArray;
+
+import com.example.calendarview.Utils.DNAStrand;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that Utils.createDNAStrands() weaves the same strands as the
+ * LinkedList implementation it replaced, see LegacyDNAStrands, and times
+ * both. Runs on a device as it needs the real SparseArray and the work day
+ * resources.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DNAStrandsTest {
+    private static final int FIRST_DAY = 2457000;
+    private static final int[] DAY_XS = {10, 40, 70, 100, 130, 160, 190};
+    private static final int TOP = 20;
+    private static final int BOTTOM = 120;
+    private static final int MIN_PIXELS = 4;
+
+    private static final int RED = 0xffff0000;
+    private static final int GREEN = 0xff00ff00;
+    private static final int BLUE = 0xff0000ff;
+    private static final int[] COLORS = {RED, GREEN, BLUE, 0xffffff00, 0xff00ffff};
+
+    @Before
+    public void loadWorkDay() {
+        // Loads the work day parameters LegacyDNAStrands reads
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(timed(0, 9 * 60, 0, 10 * 60, RED));
+        Utils.createDNAStrands(FIRST_DAY, events, TOP, BOTTOM, MIN_PIXELS, DAY_XS,
+                InstrumentationRegistry.getTargetContext());
+    }
+
+    @Test
+    public void overlappingEvents() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        // Nested, so the outer one is split on both sides
+        events.add(timed(0, 8 * 60, 0, 12 * 60, RED));
+        events.add(timed(0, 9 * 60, 0, 10 * 60, GREEN));
+        // Chained conflicts merging into the conflict on either side
+        events.add(timed(1, 9 * 60, 1, 11 * 60, RED));
+        events.add(timed(1, 10 * 60, 1, 12 * 60, GREEN));
+        events.add(timed(1, 10 * 60 + 30, 1, 13 * 60, BLUE));
+        events.add(timed(1, 11 * 60 + 55, 1, 14 * 60, RED));
+        // Touching but not overlapping, and events shorter than the minimum
+        events.add(timed(2, 7 * 60, 2, 8 * 60, BLUE));
+        events.add(timed(2, 8 * 60, 2, 8 * 60 + 5, GREEN));
+        events.add(timed(2, 8 * 60 + 6, 2, 8 * 60 + 7, RED));
+        // Early and late in the day, where the minimum is larger
+        events.add(timed(3, 60, 3, 70, RED));
+        events.add(timed(3, 65, 3, 80, GREEN));
+        events.add(timed(3, 23 * 60, 3, 23 * 60 + 30, BLUE));
+        events.add(timed(3, 23 * 60 + 10, 3, 23 * 60 + 59, RED));
+        assertSameStrands(events);
+    }
+
+    @Test
+    public void multiDayEvents() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        // Starts before the week and is clipped to it
+        events.add(timed(-2, 22 * 60, 0, 3 * 60, RED));
+        events.add(timed(0, 2 * 60, 0, 9 * 60, GREEN));
+        // Spans several days with events on the days in between
+        events.add(timed(1, 20 * 60, 4, 6 * 60, BLUE));
+        events.add(timed(2, 10 * 60, 2, 11 * 60, RED));
+        events.add(timed(3, 23 * 60, 4, 60, GREEN));
+        // Ends after the week
+        events.add(timed(6, 18 * 60, 8, 10 * 60, RED));
+        events.add(timed(6, 19 * 60, 6, 20 * 60, GREEN));
+        assertSameStrands(events);
+    }
+
+    @Test
+    public void allDayEvents() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(allDay(-1, 1, RED));
+        events.add(timed(0, 9 * 60, 0, 10 * 60, BLUE));
+        events.add(allDay(1, 1, GREEN));
+        events.add(allDay(1, 3, BLUE));
+        events.add(timed(1, 9 * 60, 1, 10 * 60, RED));
+        events.add(timed(1, 9 * 60 + 30, 1, 11 * 60, GREEN));
+        // Timed but a day long, drawn as all day
+        events.add(timed(4, 12 * 60, 5, 12 * 60, RED));
+        events.add(allDay(6, 9, GREEN));
+        assertSameStrands(events);
+    }
+
+    @Test
+    public void busyWeeks() {
+        Random random = new Random(42);
+        for (int week = 0; week < 200; week++) {
+            assertSameStrands(randomWeek(random, 1 + random.nextInt(60)));
+        }
+    }
+
+    @Test
+    public void strandTime() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        for (int count : new int[] {50, 500, 5000}) {
+            final ArrayList<Event> events = randomWeek(new Random(count), count);
+            sortByStart(events);
+            long legacy = Benchmark.median(11, new Runnable() {
+                @Override
+                public void run() {
+                    LegacyDNAStrands.createDNAStrands(FIRST_DAY, events, TOP, BOTTOM,
+                            MIN_PIXELS, DAY_XS);
+                }
+            });
+            long current = Benchmark.median(11, new Runnable() {
+                @Override
+                public void run() {
+                    Utils.createDNAStrands(FIRST_DAY, events, TOP, BOTTOM, MIN_PIXELS, DAY_XS,
+                            context);
+                }
+            });
+            Benchmark.report("DNA strands " + count + " events, LinkedList", legacy);
+            Benchmark.report("DNA strands " + count + " events, segment buffer", current);
+        }
+    }
+
+    /**
+     * Returns count events in and around the week, a tenth of them all day
+     * and some spanning days.
+     */
+    private static ArrayList<Event> randomWeek(Random random, int count) {
+        ArrayList<Event> events = new ArrayList<Event>(count);
+        for (int i = 0; i < count; i++) {
+            int color = COLORS[random.nextInt(COLORS.length)];
+            int startDay = random.nextInt(9) - 1;
+            if (random.nextInt(10) == 0) {
+                events.add(allDay(startDay, startDay + random.nextInt(3), color));
+                continue;
+            }
+            int startTime = random.nextInt(24 * 60);
+            int endDay = startDay + (random.nextInt(6) == 0 ? 1 + random.nextInt(2) : 0);
+            int endTime = endDay > startDay ? random.nextInt(24 * 60)
+                    : Math.min(startTime + random.nextInt(4 * 60), 24 * 60 - 1);
+            events.add(timed(startDay, startTime, endDay, endTime, color));
+        }
+        return events;
+    }
+
+    private static void assertSameStrands(ArrayList<Event> events) {
+        sortByStart(events);
+        HashMap<Integer, DNAStrand> expected = LegacyDNAStrands.createDNAStrands(FIRST_DAY,
+                events, TOP, BOTTOM, MIN_PIXELS, DAY_XS);
+        SparseArray<DNAStrand> actual = Utils.createDNAStrands(FIRST_DAY, events, TOP, BOTTOM,
+                MIN_PIXELS, DAY_XS, InstrumentationRegistry.getTargetContext());
+
+        assertEquals("strand colors", expected.size(), actual.size());
+        for (Integer color : expected.keySet()) {
+            DNAStrand want = expected.get(color);
+            DNAStrand got = actual.get(color);
+            String name = Integer.toHexString(color);
+            assertNotNull("missing strand " + name, got);
+            assertEquals("color of " + name, want.color, got.color);
+            assertEquals("count of " + name, want.count, got.count);
+            assertEquals("position of " + name, want.position, got.position);
+            assertArrayEquals("points of " + name + ": " + Arrays.toString(got.points),
+                    want.points, got.points, 0f);
+            assertArrayEquals("allDays of " + name, want.allDays, got.allDays);
+        }
+    }
+
+    private static void sortByStart(ArrayList<Event> events) {
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                if (a.startDay != b.startDay) {
+                    return a.startDay - b.startDay;
+                }
+                return a.startTime - b.startTime;
+            }
+        });
+    }
+
+    private static Event timed(int startDay, int startTime, int endDay, int endTime,
+            int color) {
+        Event event = Event.newInstance();
+        event.startDay = FIRST_DAY + startDay;
+        event.startTime = startTime;
+        event.endDay = FIRST_DAY + endDay;
+        event.endTime = endTime;
+        event.color = color;
+        event.startMillis = (startDay * 24 * 60 + startTime) * DateUtils.MINUTE_IN_MILLIS;
+        event.setEndMillis((endDay * 24 * 60 + endTime) * DateUtils.MINUTE_IN_MILLIS);
+        return event;
+    }
+
+    private static Event allDay(int startDay, int endDay, int color) {
+        Event event = timed(startDay, 0, endDay, 24 * 60 - 1, color);
+        event.allDay = true;
+        return event;
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.calendarview;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.text.format.DateUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that drawing through EventDayIndex visits the same events as the
+ * scan over every event it replaced, and times one 7 day frame both ways.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EventDayIndexTest {
+    private static final int FIRST_DAY = 2457000;
+    private static final int NUM_DAYS = 7;
+    private static final int CELL_HEIGHT = 60;
+    private static final int HOUR_GAP = 1;
+    private static final int CELL_WIDTH = 100;
+    // About eight hours on screen, starting at 7:00
+    private static final int VISIBLE_TOP = 7 * (CELL_HEIGHT + HOUR_GAP);
+    private static final int VISIBLE_BOTTOM = 15 * (CELL_HEIGHT + HOUR_GAP);
+
+    private final EventGeometry mGeometry = new EventGeometry();
+
+    public EventDayIndexTest() {
+        mGeometry.setHourHeight(CELL_HEIGHT);
+        mGeometry.setHourGap(HOUR_GAP);
+        mGeometry.setMinEventHeight(2);
+        mGeometry.setCellMargin(1);
+    }
+
+    @Test
+    public void visitsSameEvents() {
+        for (int count : new int[] {0, 1, 100, 1000}) {
+            EventStore store = buildStore(count, count);
+            EventDayIndex index = new EventDayIndex();
+            index.build(store, FIRST_DAY, NUM_DAYS);
+            for (int day = FIRST_DAY; day < FIRST_DAY + NUM_DAYS; day++) {
+                assertEquals(count + " events, day " + day, drawScan(store, day),
+                        drawIndexed(store, index, day));
+            }
+        }
+    }
+
+    @Test
+    public void frameTime() {
+        for (int count : new int[] {100, 1000, 10000}) {
+            final EventStore store = buildStore(count, 42);
+            final EventDayIndex index = new EventDayIndex();
+            index.build(store, FIRST_DAY, NUM_DAYS);
+            long scan = Benchmark.median(21, new Runnable() {
+                @Override
+                public void run() {
+                    for (int day = FIRST_DAY; day < FIRST_DAY + NUM_DAYS; day++) {
+                        drawScan(store, day);
+                    }
+                }
+            });
+            long indexed = Benchmark.median(21, new Runnable() {
+                @Override
+                public void run() {
+                    for (int day = FIRST_DAY; day < FIRST_DAY + NUM_DAYS; day++) {
+                        drawIndexed(store, index, day);
+                    }
+                }
+            });
+            long build = Benchmark.median(21, new Runnable() {
+                @Override
+                public void run() {
+                    index.build(store, FIRST_DAY, NUM_DAYS);
+                }
+            });
+            Benchmark.report("EventDayIndex " + count + " events, scan frame", scan);
+            Benchmark.report("EventDayIndex " + count + " events, indexed frame", indexed);
+            Benchmark.report("EventDayIndex " + count + " events, build", build);
+        }
+    }
+
+    /**
+     * Returns the visible events of a day the way drawEvents() used to find
+     * them, as a list of store positions in the order they are drawn.
+     */
+    private ArrayList<Integer> drawScan(EventStore store, int day) {
+        ArrayList<Integer> drawn = new ArrayList<Integer>();
+        for (int i = 0; i < store.size; i++) {
+            if (isVisible(store, day, i)) {
+                drawn.add(i);
+            }
+        }
+        sortByTop(store, drawn);
+        return drawn;
+    }
+
+    /**
+     * Same as drawScan() through the index, the way drawEvents() does now.
+     */
+    private ArrayList<Integer> drawIndexed(EventStore store, EventDayIndex index, int day) {
+        ArrayList<Integer> drawn = new ArrayList<Integer>();
+        int[] positions = index.getPositions();
+        int end = index.sliceEnd(day);
+        for (int j = index.sliceStart(day); j < end; j++) {
+            int i = positions[j];
+            if (!mGeometry.computeEventRect(day, 0, HOUR_GAP, CELL_WIDTH, store, i)) {
+                continue;
+            }
+            if (store.top[i] > VISIBLE_BOTTOM) {
+                break;
+            }
+            if (store.bottom[i] >= VISIBLE_TOP) {
+                drawn.add(i);
+            }
+        }
+        sortByTop(store, drawn);
+        return drawn;
+    }
+
+    private boolean isVisible(EventStore store, int day, int i) {
+        return mGeometry.computeEventRect(day, 0, HOUR_GAP, CELL_WIDTH, store, i)
+                && store.top[i] <= VISIBLE_BOTTOM && store.bottom[i] >= VISIBLE_TOP;
+    }
+
+    // The two paths draw events with the same top in different orders
+    private static void sortByTop(final EventStore store, ArrayList<Integer> positions) {
+        Collections.sort(positions, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byTop = Float.compare(store.top[a], store.top[b]);
+                return byTop != 0 ? byTop : a - b;
+            }
+        });
+    }
+
+    /**
+     * Returns a store of count timed events over the week, in the order the
+     * provider returns them, with their columns assigned.
+     */
+    private static EventStore buildStore(int count, long seed) {
+        Random random = new Random(seed);
+        ArrayList<Event> events = new ArrayList<Event>(count);
+        for (int i = 0; i < count; i++) {
+            // A few start the day before and some run past midnight
+            int startDay = FIRST_DAY - 1 + random.nextInt(NUM_DAYS + 1);
+            int startTime = random.nextInt(24 * 60);
+            int duration = random.nextInt(10) == 0 ? 8 * 60 + random.nextInt(12 * 60)
+                    : 15 + random.nextInt(3 * 60);
+            int end = startTime + duration;
+            Event event = Event.newInstance();
+            event.id = i;
+            event.startDay = startDay;
+            event.startTime = startTime;
+            event.endDay = startDay + end / (24 * 60);
+            event.endTime = end % (24 * 60);
+            event.startMillis = ((startDay - FIRST_DAY) * 24 * 60 + startTime)
+                    * DateUtils.MINUTE_IN_MILLIS;
+            event.setEndMillis(event.startMillis + duration * DateUtils.MINUTE_IN_MILLIS);
+            events.add(event);
+        }
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return a.startMillis < b.startMillis ? -1 : a.startMillis > b.startMillis ? 1 : 0;
+            }
+        });
+        EventStore store = new EventStore();
+        store.set(events);
+        Event.computePositions(store, DateUtils.MINUTE_IN_MILLIS * 15);
+        return store;
+    }
+}
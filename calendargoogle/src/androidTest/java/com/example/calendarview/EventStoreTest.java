@@ -0,0 +1,140 @@
+package com.example.calendarview;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.text.format.DateUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that column assignment on an EventStore matches the one on the
+ * event list it replaced, and that paging weeks reuses the store's arrays.
+ * Times paging through weeks with both.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EventStoreTest {
+    private static final int FIRST_DAY = 2457000;
+    private static final long MIN_DURATION = 15 * DateUtils.MINUTE_IN_MILLIS;
+
+    @Test
+    public void sameColumnsAsEventList() {
+        for (int count : new int[] {0, 1, 50, 500, 2000}) {
+            ArrayList<Event> listEvents = buildWeek(count, count);
+            ArrayList<Event> storeEvents = copy(listEvents);
+            Event.computePositions(listEvents, MIN_DURATION);
+            EventStore store = new EventStore();
+            store.set(storeEvents);
+            Event.computePositions(store, MIN_DURATION);
+            for (int i = 0; i < count; i++) {
+                Event expected = listEvents.get(i);
+                assertEquals(count + " events, column of " + i, expected.getColumn(),
+                        store.column[i]);
+                assertEquals(count + " events, max columns of " + i,
+                        expected.getMaxColumns(), store.maxColumns[i]);
+                assertEquals(count + " events, synced column of " + i, expected.getColumn(),
+                        storeEvents.get(i).getColumn());
+            }
+        }
+    }
+
+    @Test
+    public void reusesArraysWhenPaging() {
+        EventStore store = new EventStore();
+        store.set(buildWeek(500, 0));
+        long[] ids = store.ids;
+        float[] top = store.top;
+        int[] scratch = store.activeScratch;
+        for (int week = 1; week < 20; week++) {
+            ArrayList<Event> events = buildWeek(100 + week * 20, week);
+            store.set(events);
+            Event.computePositions(store, MIN_DURATION);
+            assertSame("ids of week " + week, ids, store.ids);
+            assertSame("top of week " + week, top, store.top);
+            assertSame("scratch of week " + week, scratch, store.activeScratch);
+            assertEquals(events.size(), store.size);
+        }
+    }
+
+    @Test
+    public void pagingTime() {
+        for (int count : new int[] {50, 500, 5000}) {
+            final ArrayList<ArrayList<Event>> weeks = new ArrayList<ArrayList<Event>>();
+            for (int week = 0; week < 8; week++) {
+                weeks.add(buildWeek(count, week));
+            }
+            final EventStore store = new EventStore();
+            long storeTime = Benchmark.median(21, new Runnable() {
+                @Override
+                public void run() {
+                    for (ArrayList<Event> events : weeks) {
+                        store.set(events);
+                        Event.computePositions(store, MIN_DURATION);
+                    }
+                }
+            });
+            long listTime = Benchmark.median(21, new Runnable() {
+                @Override
+                public void run() {
+                    for (ArrayList<Event> events : weeks) {
+                        Event.computePositions(events, MIN_DURATION);
+                    }
+                }
+            });
+            Benchmark.report("EventStore " + count + " events, 8 weeks through the store",
+                    storeTime);
+            Benchmark.report("EventStore " + count + " events, 8 weeks through the list",
+                    listTime);
+        }
+    }
+
+    /**
+     * Returns count events over a week, a tenth of them all day, in the
+     * order the provider returns them.
+     */
+    private static ArrayList<Event> buildWeek(int count, long seed) {
+        Random random = new Random(seed);
+        ArrayList<Event> events = new ArrayList<Event>(count);
+        for (int i = 0; i < count; i++) {
+            int startDay = FIRST_DAY + random.nextInt(7);
+            int startTime = random.nextInt(24 * 60);
+            int duration = random.nextInt(10) == 0 ? 24 * 60 * (1 + random.nextInt(2))
+                    : 15 + random.nextInt(3 * 60);
+            int end = startTime + duration;
+            Event event = Event.newInstance();
+            event.id = i;
+            event.startDay = startDay;
+            event.startTime = startTime;
+            event.endDay = startDay + end / (24 * 60);
+            event.endTime = end % (24 * 60);
+            event.startMillis = ((startDay - FIRST_DAY) * 24 * 60 + startTime)
+                    * DateUtils.MINUTE_IN_MILLIS;
+            event.setEndMillis(event.startMillis + duration * DateUtils.MINUTE_IN_MILLIS);
+            events.add(event);
+        }
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return a.startMillis < b.startMillis ? -1 : a.startMillis > b.startMillis ? 1 : 0;
+            }
+        });
+        return events;
+    }
+
+    private static ArrayList<Event> copy(ArrayList<Event> events) {
+        ArrayList<Event> copy = new ArrayList<Event>(events.size());
+        for (Event event : events) {
+            Event e = Event.newInstance();
+            event.copyTo(e);
+            copy.add(e);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.calendarview;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Calendars;
+import android.provider.CalendarContract.Events;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentProvider;
+import android.text.format.DateUtils;
+
+/**
+ * Imports from a stand-in for the system calendar provider into an isolated
+ * CalendarProvider.
+ */
+public class ImportEntriesTest extends ProviderTestCase2<CalendarProvider> {
+    private SystemCalendar mSystemCalendar;
+
+    public ImportEntriesTest() {
+        super(CalendarProvider.class, CalendarProvider.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSystemCalendar = new SystemCalendar();
+        getMockContentResolver().addProvider(CalendarContract.AUTHORITY, mSystemCalendar);
+    }
+
+    /**
+     * Times importing 50,000 events, then importing them again unchanged,
+     * which should only read them.
+     */
+    public void testImportRate() {
+        mSystemCalendar.calendars = 4;
+        mSystemCalendar.eventsPerCalendar = 12500;
+        int count = mSystemCalendar.calendars * mSystemCalendar.eventsPerCalendar;
+
+        long start = System.nanoTime();
+        runImport();
+        long first = System.nanoTime() - start;
+        assertEquals(count, countEvents());
+
+        start = System.nanoTime();
+        runImport();
+        long again = System.nanoTime() - start;
+        assertEquals(count, countEvents());
+
+        Benchmark.reportRate("ImportEntries " + count + " events, first import", count, first);
+        Benchmark.reportRate("ImportEntries " + count + " events, unchanged", count, again);
+    }
+
+    /**
+     * A calendar whose events can't be read keeps the events imported from
+     * it, and the other calendars still sync.
+     */
+    public void testUnreadableCalendarKeepsItsEvents() {
+        mSystemCalendar.calendars = 3;
+        mSystemCalendar.eventsPerCalendar = 10;
+        runImport();
+        assertEquals(30, countEvents());
+
+        mSystemCalendar.unreadableCalendar = 2;
+        mSystemCalendar.calendars = 4;
+        runImport();
+        assertEquals(40, countEvents());
+    }
+
+    /**
+     * Nothing is deleted when the calendars themselves can't be read.
+     */
+    public void testUnreadableCalendarsKeepEverything() {
+        mSystemCalendar.calendars = 2;
+        mSystemCalendar.eventsPerCalendar = 10;
+        runImport();
+        assertEquals(20, countEvents());
+
+        mSystemCalendar.calendarsUnreadable = true;
+        runImport();
+        assertEquals(20, countEvents());
+    }
+
+    private void runImport() {
+        new ImportEntries().doInBackground(getMockContext());
+    }
+
+    private int countEvents() {
+        ContentResolver resolver = getMockContentResolver();
+        Cursor c = resolver.query(CalendarProvider.CONTENT_URI,
+                new String[] {CalendarProvider.ID}, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Serves calendars 1..calendars, each with eventsPerCalendar one hour
+     * events with ids following on from the previous calendar's. Returns
+     * a null cursor, the way the system provider does when it goes away,
+     * for the calendars or for the events of unreadableCalendar.
+     */
+    private static class SystemCalendar extends MockContentProvider {
+        private static final long BASE_MILLIS = 1420070400000L; // 2015-01-01 UTC
+
+        int calendars;
+        int eventsPerCalendar;
+        boolean calendarsUnreadable;
+        long unreadableCalendar = -1;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (Calendars.CONTENT_URI.equals(uri)) {
+                if (calendarsUnreadable) {
+                    return null;
+                }
+                MatrixCursor c = new MatrixCursor(projection, calendars);
+                for (long id = 1; id <= calendars; id++) {
+                    c.addRow(new Object[] {id});
+                }
+                return c;
+            }
+            if (!Events.CONTENT_URI.equals(uri)) {
+                throw new UnsupportedOperationException("Unknown uri " + uri);
+            }
+            // Only ever asked for the events of one calendar, in id order
+            long calendarId = Long.parseLong(selectionArgs[0]);
+            if (calendarId == unreadableCalendar) {
+                return null;
+            }
+            MatrixCursor c = new MatrixCursor(projection, eventsPerCalendar);
+            long firstId = (calendarId - 1) * eventsPerCalendar + 1;
+            for (long id = firstId; id < firstId + eventsPerCalendar; id++) {
+                Object[] row = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    row[i] = column(projection[i], id, calendarId);
+                }
+                c.addRow(row);
+            }
+            return c;
+        }
+
+        private Object column(String name, long id, long calendarId) {
+            long start = BASE_MILLIS + id * DateUtils.HOUR_IN_MILLIS;
+            if (Events._ID.equals(name)) {
+                return id;
+            } else if (Events.CALENDAR_ID.equals(name)) {
+                return calendarId;
+            } else if (Events.TITLE.equals(name)) {
+                return "Event " + id;
+            } else if (Events.EVENT_LOCATION.equals(name)) {
+                return "Room " + id % 10;
+            } else if (Events.DTSTART.equals(name)) {
+                return start;
+            } else if (Events.DTEND.equals(name)) {
+                return start + DateUtils.HOUR_IN_MILLIS;
+            } else if (Events.EVENT_TIMEZONE.equals(name)) {
+                return "UTC";
+            }
+            return null;
+        }
+    }
+}
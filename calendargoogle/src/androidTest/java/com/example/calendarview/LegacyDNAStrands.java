@@ -0,0 +1,278 @@
+package com.example.calendarview;
+
+import com.example.calendarview.Utils.DNAStrand;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import static com.example.calendarview.Utils.CONFLICT_COLOR;
+import static com.example.calendarview.Utils.DAY_IN_MINUTES;
+import static com.example.calendarview.Utils.WEEK_IN_MINUTES;
+import static com.example.calendarview.Utils.WORK_DAY_END_LENGTH;
+import static com.example.calendarview.Utils.WORK_DAY_END_MINUTES;
+import static com.example.calendarview.Utils.WORK_DAY_MINUTES;
+import static com.example.calendarview.Utils.WORK_DAY_START_MINUTES;
+
+/**
+ * The LinkedList implementation of Utils.createDNAStrands() from before the
+ * segments moved into DNASegmentBuffer, kept as the reference DNAStrandsTest
+ * compares against. Only the segment pool and the logging were left out.
+ * Reads the work day parameters Utils loaded, so call Utils first.
+ */
+class LegacyDNAStrands {
+    private static class DNASegment {
+        int startMinute; // in minutes since the start of the week
+        int endMinute;
+        int color; // Calendar color or black for conflicts
+        int day; // quick reference to the day this segment is on
+    }
+
+    static HashMap<Integer, DNAStrand> createDNAStrands(int firstJulianDay,
+            ArrayList<Event> events, int top, int bottom, int minPixels, int[] dayXs) {
+        LinkedList<DNASegment> segments = new LinkedList<DNASegment>();
+        HashMap<Integer, DNAStrand> strands = new HashMap<Integer, DNAStrand>();
+        DNAStrand blackStrand = new DNAStrand();
+        blackStrand.color = CONFLICT_COLOR;
+        strands.put(CONFLICT_COLOR, blackStrand);
+        int minMinutes = minPixels * 4 * WORK_DAY_MINUTES / (3 * (bottom - top));
+        int minOtherMinutes = minMinutes * 5 / 2;
+        int lastJulianDay = firstJulianDay + dayXs.length - 1;
+
+        Event event = Event.newInstance();
+        for (Event currEvent : events) {
+            if (currEvent.endDay < firstJulianDay || currEvent.startDay > lastJulianDay) {
+                continue;
+            }
+            if (currEvent.drawAsAllday()) {
+                addAllDayToStrands(currEvent, strands, firstJulianDay, dayXs.length);
+                continue;
+            }
+            currEvent.copyTo(event);
+            if (event.startDay < firstJulianDay) {
+                event.startDay = firstJulianDay;
+                event.startTime = 0;
+            }
+            if (event.startTime > DAY_IN_MINUTES - minOtherMinutes) {
+                event.startTime = DAY_IN_MINUTES - minOtherMinutes;
+            }
+            if (event.endDay > lastJulianDay) {
+                event.endDay = lastJulianDay;
+                event.endTime = DAY_IN_MINUTES - 1;
+            }
+            if (event.endTime < minOtherMinutes) {
+                event.endTime = minOtherMinutes;
+            }
+            if (event.startDay == event.endDay &&
+                    event.endTime - event.startTime < minOtherMinutes) {
+                if (event.startTime < WORK_DAY_START_MINUTES) {
+                    event.endTime = Math.min(event.startTime + minOtherMinutes,
+                            WORK_DAY_START_MINUTES + minMinutes);
+                } else if (event.endTime > WORK_DAY_END_MINUTES) {
+                    event.endTime = Math.min(event.endTime + minOtherMinutes, DAY_IN_MINUTES - 1);
+                    if (event.endTime - event.startTime < minOtherMinutes) {
+                        event.startTime = event.endTime - minOtherMinutes;
+                    }
+                }
+            }
+
+            if (segments.size() == 0) {
+                addNewSegment(segments, event, strands, firstJulianDay, 0, minMinutes);
+                continue;
+            }
+            DNASegment lastSegment = segments.getLast();
+            int startMinute = (event.startDay - firstJulianDay) * DAY_IN_MINUTES + event.startTime;
+            int endMinute = Math.max((event.endDay - firstJulianDay) * DAY_IN_MINUTES
+                    + event.endTime, startMinute + minMinutes);
+
+            if (startMinute < 0) {
+                startMinute = 0;
+            }
+            if (endMinute >= WEEK_IN_MINUTES) {
+                endMinute = WEEK_IN_MINUTES - 1;
+            }
+            if (startMinute < lastSegment.endMinute) {
+                int i = segments.size();
+                while (--i >= 0 && endMinute < segments.get(i).startMinute);
+
+                DNASegment currSegment;
+                for (; i >= 0 && startMinute <= (currSegment = segments.get(i)).endMinute; i--) {
+                    if (currSegment.color == CONFLICT_COLOR) {
+                        continue;
+                    }
+                    if (endMinute < currSegment.endMinute - minMinutes) {
+                        DNASegment rhs = new DNASegment();
+                        rhs.endMinute = currSegment.endMinute;
+                        rhs.color = currSegment.color;
+                        rhs.startMinute = endMinute + 1;
+                        rhs.day = currSegment.day;
+                        currSegment.endMinute = endMinute;
+                        segments.add(i + 1, rhs);
+                        strands.get(rhs.color).count++;
+                    }
+                    if (startMinute > currSegment.startMinute + minMinutes) {
+                        DNASegment lhs = new DNASegment();
+                        lhs.startMinute = currSegment.startMinute;
+                        lhs.color = currSegment.color;
+                        lhs.endMinute = startMinute - 1;
+                        lhs.day = currSegment.day;
+                        currSegment.startMinute = startMinute;
+                        segments.add(i++, lhs);
+                        strands.get(lhs.color).count++;
+                    }
+                    if (i + 1 < segments.size()) {
+                        DNASegment rhs = segments.get(i + 1);
+                        if (rhs.color == CONFLICT_COLOR && currSegment.day == rhs.day
+                                && rhs.startMinute <= currSegment.endMinute + 1) {
+                            rhs.startMinute = Math.min(currSegment.startMinute, rhs.startMinute);
+                            segments.remove(currSegment);
+                            strands.get(currSegment.color).count--;
+                            currSegment = rhs;
+                        }
+                    }
+                    if (i - 1 >= 0) {
+                        DNASegment lhs = segments.get(i - 1);
+                        if (lhs.color == CONFLICT_COLOR && currSegment.day == lhs.day
+                                && lhs.endMinute >= currSegment.startMinute - 1) {
+                            lhs.endMinute = Math.max(currSegment.endMinute, lhs.endMinute);
+                            segments.remove(currSegment);
+                            strands.get(currSegment.color).count--;
+                            currSegment = lhs;
+                            i--;
+                        }
+                    }
+                    if (currSegment.color != CONFLICT_COLOR) {
+                        strands.get(currSegment.color).count--;
+                        currSegment.color = CONFLICT_COLOR;
+                        strands.get(CONFLICT_COLOR).count++;
+                    }
+                }
+
+            }
+            if (endMinute > lastSegment.endMinute) {
+                addNewSegment(segments, event, strands, firstJulianDay, lastSegment.endMinute,
+                        minMinutes);
+            }
+        }
+        weaveDNAStrands(segments, firstJulianDay, strands, top, bottom, dayXs);
+        Event.recycle(event);
+        return strands;
+    }
+
+    private static void addAllDayToStrands(Event event, HashMap<Integer, DNAStrand> strands,
+            int firstJulianDay, int numDays) {
+        DNAStrand strand = getOrCreateStrand(strands, CONFLICT_COLOR);
+        if (strand.allDays == null) {
+            strand.allDays = new int[numDays];
+        }
+        int end = Math.min(event.endDay - firstJulianDay, numDays - 1);
+        for (int i = Math.max(event.startDay - firstJulianDay, 0); i <= end; i++) {
+            if (strand.allDays[i] != 0) {
+                strand.allDays[i] = CONFLICT_COLOR;
+            } else {
+                strand.allDays[i] = event.color;
+            }
+        }
+    }
+
+    private static void weaveDNAStrands(LinkedList<DNASegment> segments, int firstJulianDay,
+            HashMap<Integer, DNAStrand> strands, int top, int bottom, int[] dayXs) {
+        Iterator<DNAStrand> strandIterator = strands.values().iterator();
+        while (strandIterator.hasNext()) {
+            DNAStrand strand = strandIterator.next();
+            if (strand.count < 1 && strand.allDays == null) {
+                strandIterator.remove();
+                continue;
+            }
+            strand.points = new float[strand.count * 4];
+            strand.position = 0;
+        }
+        for (DNASegment segment : segments) {
+            DNAStrand strand = strands.get(segment.color);
+            int dayIndex = segment.day - firstJulianDay;
+            int dayStartMinute = segment.startMinute % DAY_IN_MINUTES;
+            int dayEndMinute = segment.endMinute % DAY_IN_MINUTES;
+            int height = bottom - top;
+            int workDayHeight = height * 3 / 4;
+            int remainderHeight = (height - workDayHeight) / 2;
+
+            int x = dayXs[dayIndex];
+            int y0 = top + getPixelOffsetFromMinutes(dayStartMinute, workDayHeight,
+                    remainderHeight);
+            int y1 = top + getPixelOffsetFromMinutes(dayEndMinute, workDayHeight,
+                    remainderHeight);
+            strand.points[strand.position++] = x;
+            strand.points[strand.position++] = y0;
+            strand.points[strand.position++] = x;
+            strand.points[strand.position++] = y1;
+        }
+    }
+
+    private static int getPixelOffsetFromMinutes(int minute, int workDayHeight,
+            int remainderHeight) {
+        int y;
+        if (minute < WORK_DAY_START_MINUTES) {
+            y = minute * remainderHeight / WORK_DAY_START_MINUTES;
+        } else if (minute < WORK_DAY_END_MINUTES) {
+            y = remainderHeight + (minute - WORK_DAY_START_MINUTES) * workDayHeight
+                    / WORK_DAY_MINUTES;
+        } else {
+            y = remainderHeight + workDayHeight + (minute - WORK_DAY_END_MINUTES) * remainderHeight
+                    / WORK_DAY_END_LENGTH;
+        }
+        return y;
+    }
+
+    private static void addNewSegment(LinkedList<DNASegment> segments, Event event,
+            HashMap<Integer, DNAStrand> strands, int firstJulianDay, int minStart, int minMinutes) {
+        Event split = null;
+        if (event.startDay != event.endDay) {
+            Event lhs = Event.newInstance();
+            split = lhs;
+            lhs.color = event.color;
+            lhs.startDay = event.startDay;
+            lhs.startTime = event.startTime;
+            lhs.endDay = lhs.startDay;
+            lhs.endTime = DAY_IN_MINUTES - 1;
+            while (lhs.startDay != event.endDay) {
+                addNewSegment(segments, lhs, strands, firstJulianDay, minStart, minMinutes);
+                lhs.startDay++;
+                lhs.endDay = lhs.startDay;
+                lhs.startTime = 0;
+                minStart = 0;
+            }
+            lhs.endTime = event.endTime;
+            event = lhs;
+        }
+        DNASegment segment = new DNASegment();
+        int dayOffset = (event.startDay - firstJulianDay) * DAY_IN_MINUTES;
+        int endOfDay = dayOffset + DAY_IN_MINUTES - 1;
+        segment.startMinute = Math.max(dayOffset + event.startTime, minStart);
+        int minEnd = Math.min(segment.startMinute + minMinutes, endOfDay);
+        segment.endMinute = Math.max(dayOffset + event.endTime, minEnd);
+        if (segment.endMinute > endOfDay) {
+            segment.endMinute = endOfDay;
+        }
+
+        segment.color = event.color;
+        segment.day = event.startDay;
+        segments.add(segment);
+        if (split != null) {
+            Event.recycle(split);
+        }
+        DNAStrand strand = getOrCreateStrand(strands, segment.color);
+        strand.count++;
+    }
+
+    private static DNAStrand getOrCreateStrand(HashMap<Integer, DNAStrand> strands, int color) {
+        DNAStrand strand = strands.get(color);
+        if (strand == null) {
+            strand = new DNAStrand();
+            strand.color = color;
+            strand.count = 0;
+            strands.put(strand.color, strand);
+        }
+        return strand;
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.calendarview;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.text.format.DateUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks where UNTIL stops a rule, in an event zone behind UTC so a day in
+ * the zone and the same day in UTC differ.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RecurrenceExpanderTest {
+    private static final String ZONE = "America/Los_Angeles";
+
+    @Test
+    public void untilDateTakesInThatWholeDay() {
+        // Daily at 20:00 from January 1st up to and including the 5th
+        long[] starts = expandDaily("FREQ=DAILY;UNTIL=20150105");
+        assertEquals(5, starts.length);
+        assertEquals(localTime(2015, Calendar.JANUARY, 5, 20), starts[4]);
+    }
+
+    @Test
+    public void untilDateTimeIsInTheEventZone() {
+        long[] starts = expandDaily("FREQ=DAILY;UNTIL=20150103T200000");
+        assertEquals(3, starts.length);
+        assertEquals(localTime(2015, Calendar.JANUARY, 3, 20), starts[2]);
+    }
+
+    @Test
+    public void untilUtcTimeIsExact() {
+        // 04:00 UTC on the 4th is 20:00 on the 3rd in the zone
+        assertEquals(3, expandDaily("FREQ=DAILY;UNTIL=20150104T040000Z").length);
+        assertEquals(2, expandDaily("FREQ=DAILY;UNTIL=20150104T035959Z").length);
+    }
+
+    private static long[] expandDaily(String rrule) {
+        long dtStart = localTime(2015, Calendar.JANUARY, 1, 20);
+        return RecurrenceExpander.expand(dtStart, ZONE, rrule, null, null, dtStart,
+                dtStart + 30 * DateUtils.DAY_IN_MILLIS);
+    }
+
+    private static long localTime(int year, int month, int day, int hour) {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone(ZONE));
+        cal.clear();
+        cal.set(year, month, day, hour, 0);
+        return cal.getTimeInMillis();
+    }
+}
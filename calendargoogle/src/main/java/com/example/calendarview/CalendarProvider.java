@@ -1,12 +1,19 @@
 package com.example.calendarview;
 
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -14,18 +21,53 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Time;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 public class CalendarProvider extends ContentProvider {
+	private static final String TAG = "CalendarProvider";
+	private static final boolean DEBUG = false;
+	// Logs the throughput of bulkInsert
+	private static final boolean PROFILE = false;
 	
 	private static final String DATABASE_NAME = "Calendar";
 	private static final String EVENTS_TABLE = "events";
-	private static final int DATABASE_VERSION = 4;
-	private static final String  AUTHORITY = "com.example.calendarview.calendarprovider";
+	private static final String INSTANCES_TABLE = "instances";
+	// One row holding the range recurring events have been expanded over
+	private static final String WINDOW_TABLE = "instances_window";
+	// Number of instances on each julian day, for the event days URI
+	private static final String EVENT_DAYS_TABLE = "event_days";
+	// Full text index of the event, location and description columns, with
+	// the events' _id as docid
+	private static final String SEARCH_TABLE = "events_fts";
+	// Backfills of derived data queued by upgrades, see runBackfills()
+	private static final String BACKFILL_TABLE = "backfills";
+	private static final int DATABASE_VERSION = 10;
+	public static final String  AUTHORITY = "com.example.calendarview.calendarprovider";
 	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/events");
 	public static final Uri CONTENT_ID_URI_BASE = Uri.parse("content://" + AUTHORITY + "/event/");
+	// events/days/<first julian day>/<last julian day>
+	public static final Uri CONTENT_DAYS_URI = Uri.parse("content://" + AUTHORITY + "/events/days");
+	// event_days/<first julian day>/<last julian day>, one JULIAN_DAY row per
+	// day that has an instance
+	public static final Uri EVENT_DAYS_URI = Uri.parse("content://" + AUTHORITY + "/" + EVENT_DAYS_TABLE);
+	// Changes are announced as events/changed/<first julian day>/<last julian
+	// day>, or events/changed when the days aren't known. Every cursor
+	// watches CONTENT_URI, so they all see them.
+	public static final Uri CONTENT_CHANGED_URI = Uri.parse("content://" + AUTHORITY + "/events/changed");
+	// search/<query>, events whose title, location or description have
+	// words starting with every word of the query, best matches first. The
+	// optional limit and offset parameters page through the results.
+	public static final Uri SEARCH_URI = Uri.parse("content://" + AUTHORITY + "/search");
+	public static final String LIMIT = "limit";
+	public static final String OFFSET = "offset";
 	private static final UriMatcher uriMatcher;
 	
 	public static final String EVENT = "event";
@@ -40,10 +82,73 @@ public class CalendarProvider extends ContentProvider {
 	public static final String END_DAY = "end_day";
 	public static final String END_TIME = "end_time";
 	public static final String START_TIME = "start_time";
+	// Hash of the source event's fields, used by ImportEntries to find changed events
+	public static final String CHECKSUM = "checksum";
+	// Recurrence of the event, as in CalendarContract.Events
+	public static final String RRULE = "rrule";
+	public static final String RDATE = "rdate";
+	public static final String EXDATE = "exdate";
+	public static final String DURATION = "duration";
+	public static final String TIMEZONE = "timezone";
+	public static final String JULIAN_DAY = "julian_day";
+	public static final String EVENT_COUNT = "event_count";
+	// 0 if the title matched, 1 for the location and 2 for the description
+	public static final String SEARCH_RANK = "search_rank";
+
+	// Columns of the instances table. The range URIs return one row per
+	// instance, with start, end and the day columns taken from here.
+	private static final String EVENT_ROW_ID = "event_row_id";
+	private static final String BEGIN = "begin";
+	private static final String WINDOW_BEGIN = "window_begin";
+	private static final String WINDOW_END = "window_end";
+	private static final String BACKFILL_NAME = "name";
+	private static final String BACKFILL_POSITION = "position";
+	private static final String BACKFILL_LAST = "last_position";
+
+	// The backfills, run in this order. Instances and search go through the
+	// events by _id, event days through the julian days of the instances.
+	private static final String BACKFILL_INSTANCES = "instances";
+	private static final String BACKFILL_EVENT_DAYS = "event_days";
+	private static final String BACKFILL_SEARCH = "search";
+	private static final String[] BACKFILLS = {
+		BACKFILL_INSTANCES, BACKFILL_EVENT_DAYS, BACKFILL_SEARCH
+	};
+	// Events per backfill transaction
+	private static final int BACKFILL_CHUNK = 200;
+	// Julian days per event days backfill transaction
+	private static final int BACKFILL_CHUNK_DAYS = 90;
+
+	// Recurring events are first expanded this far around now, and the
+	// window grows by at least WINDOW_STEP when a query goes past it
+	private static final long WINDOW_SPAN = DateUtils.YEAR_IN_MILLIS;
+	private static final long WINDOW_STEP = 90 * DateUtils.DAY_IN_MILLIS;
+	// Changes committed within this long of each other go out as one
+	// notification
+	private static final long NOTIFY_WINDOW = 200;
 	
 	private static final HashMap<String, String> mMap;
+	private static final HashMap<String, String> mInstancesMap;
+	private static final HashMap<String, String> mEventDaysMap;
+	private static final HashMap<String, String> mSearchMap;
+	private static final String SEARCH_JOIN = SEARCH_TABLE + " INNER JOIN " + EVENTS_TABLE
+			+ " ON (" + SEARCH_TABLE + ".docid = " + EVENTS_TABLE + "." + ID + ")";
+	// offsets() lists the matches column by column, so its first number is
+	// the first column that matched
+	private static final String SEARCH_RANK_EXPRESSION = "CAST(substr(offsets(" + SEARCH_TABLE
+			+ "), 1, 1) AS INTEGER)";
+	private static final String INSTANCES_JOIN = INSTANCES_TABLE + " INNER JOIN " + EVENTS_TABLE
+			+ " ON (" + INSTANCES_TABLE + "." + EVENT_ROW_ID + " = " + EVENTS_TABLE + "." + ID + ")";
     private DatabaseHelper DBHelper;
     private SQLiteDatabase db;
+    private ChangeNotifier mNotifier;
+    // Guards the window and keeps instance writes from racing a window
+    // extension, which would expand the same range twice. Always taken
+    // before beginTransaction(), never inside a transaction, or a batch and
+    // a window extension can each hold what the other waits for.
+    private final Object mInstancesLock = new Object();
+    // Empty while mWindowBegin > mWindowEnd
+    private long mWindowBegin = Long.MAX_VALUE;
+    private long mWindowEnd = Long.MIN_VALUE;
     
     private static class DatabaseHelper extends SQLiteOpenHelper{
         DatabaseHelper(Context context) 
@@ -58,22 +163,142 @@ public class CalendarProvider extends ContentProvider {
         }
         
 
+        /**
+         * Upgrades one version at a time, keeping the existing rows. The
+         * steps only change the schema, filling in derived data is queued
+         * for runBackfills() so opening the database stays quick.
+         */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, 
                               int newVersion) 
         {
-            Log.w("CalendarProvider", "Upgrading database from version " + oldVersion 
-                  + " to "
-                  + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS events");
-            onCreate(db);
+            if (oldVersion < 4) {
+                // Nothing is known about the schemas before 4
+                Log.w("CalendarProvider", "Upgrading database from version " + oldVersion 
+                      + " to "
+                      + newVersion + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS events");
+                db.execSQL("DROP TABLE IF EXISTS " + INSTANCES_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + WINDOW_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + EVENT_DAYS_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + BACKFILL_TABLE);
+                onCreate(db);
+                return;
+            }
+            // The steps before 10 queue backfills too
+            createBackfillTable(db);
+            for (int version = oldVersion + 1; version <= newVersion; version++) {
+                upgradeTo(db, version);
+            }
+        }
+
+        private void upgradeTo(SQLiteDatabase db, int version) {
+            switch (version) {
+                case 5:
+                    createIndexes(db);
+                    break;
+                case 6:
+                    // Existing rows get a null checksum, so the next import
+                    // rewrites them once
+                    db.execSQL("ALTER TABLE " + EVENTS_TABLE + " ADD COLUMN " + CHECKSUM
+                            + " INTEGER;");
+                    break;
+                case 7:
+                    for (String column : new String[] {RRULE, RDATE, EXDATE, DURATION, TIMEZONE}) {
+                        db.execSQL("ALTER TABLE " + EVENTS_TABLE + " ADD COLUMN " + column
+                                + " TEXT;");
+                    }
+                    createInstancesTables(db);
+                    queueBackfill(db, BACKFILL_INSTANCES);
+                    break;
+                case 8:
+                    createEventDaysTable(db);
+                    queueBackfill(db, BACKFILL_EVENT_DAYS);
+                    break;
+                case 9:
+                    createSearchTable(db);
+                    queueBackfill(db, BACKFILL_SEARCH);
+                    break;
+                case 10:
+                    // Only adds the backfill table, created in onUpgrade
+                    break;
+            }
+        }
+
+        private void queueBackfill(SQLiteDatabase db, String name) {
+            ContentValues values = new ContentValues();
+            values.put(BACKFILL_NAME, name);
+            db.insertWithOnConflict(BACKFILL_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
         }
         
     	private void createTables(SQLiteDatabase db){
     		db.execSQL("CREATE TABLE " + EVENTS_TABLE + "(" + ID + " integer primary key autoincrement, " +
     				EVENT + " TEXT, " + LOCATION + " TEXT, " + DESCRIPTION + " TEXT, "
     				+ START + " INTEGER, "+ END + " INTEGER, "+ CALENDAR_ID + " INTEGER, " + START_DAY + " INTEGER, "
-    				+ END_DAY + " INTEGER, " + START_TIME + " INTEGER, " + END_TIME+ " INTEGER, " + EVENT_ID + " INTEGER);");
+    				+ END_DAY + " INTEGER, " + START_TIME + " INTEGER, " + END_TIME+ " INTEGER, " + EVENT_ID + " INTEGER, " + CHECKSUM + " INTEGER, "
+    				+ RRULE + " TEXT, " + RDATE + " TEXT, " + EXDATE + " TEXT, " + DURATION + " TEXT, "
+    				+ TIMEZONE + " TEXT);");
+    		createIndexes(db);
+    		createInstancesTables(db);
+    		createEventDaysTable(db);
+    		createSearchTable(db);
+    		createBackfillTable(db);
+    	}
+
+    	// A null position means the backfill hasn't started
+    	private void createBackfillTable(SQLiteDatabase db){
+    		db.execSQL("CREATE TABLE IF NOT EXISTS " + BACKFILL_TABLE + "(" + BACKFILL_NAME
+    				+ " TEXT PRIMARY KEY, " + BACKFILL_POSITION + " INTEGER, " + BACKFILL_LAST
+    				+ " INTEGER);");
+    	}
+
+    	// The triggers keep the index in step with every write to events
+    	private void createSearchTable(SQLiteDatabase db){
+    		db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE + " USING fts4(" + EVENT + ", "
+    				+ LOCATION + ", " + DESCRIPTION + ");");
+    		db.execSQL("CREATE TRIGGER events_fts_insert AFTER INSERT ON " + EVENTS_TABLE + " BEGIN "
+    				+ "INSERT INTO " + SEARCH_TABLE + " (docid, " + EVENT + ", " + LOCATION + ", "
+    				+ DESCRIPTION + ") VALUES (new." + ID + ", new." + EVENT + ", new." + LOCATION
+    				+ ", new." + DESCRIPTION + "); END;");
+    		db.execSQL("CREATE TRIGGER events_fts_update AFTER UPDATE OF " + EVENT + ", " + LOCATION
+    				+ ", " + DESCRIPTION + " ON " + EVENTS_TABLE + " BEGIN "
+    				+ "UPDATE " + SEARCH_TABLE + " SET " + EVENT + " = new." + EVENT + ", " + LOCATION
+    				+ " = new." + LOCATION + ", " + DESCRIPTION + " = new." + DESCRIPTION
+    				+ " WHERE docid = old." + ID + "; END;");
+    		db.execSQL("CREATE TRIGGER events_fts_delete AFTER DELETE ON " + EVENTS_TABLE + " BEGIN "
+    				+ "DELETE FROM " + SEARCH_TABLE + " WHERE docid = old." + ID + "; END;");
+    	}
+
+    	private void createEventDaysTable(SQLiteDatabase db){
+    		db.execSQL("CREATE TABLE " + EVENT_DAYS_TABLE + "(" + JULIAN_DAY + " INTEGER PRIMARY KEY, "
+    				+ EVENT_COUNT + " INTEGER NOT NULL);");
+    	}
+
+    	private void createInstancesTables(SQLiteDatabase db){
+    		db.execSQL("CREATE TABLE " + INSTANCES_TABLE + "(" + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+    				+ EVENT_ROW_ID + " INTEGER NOT NULL, " + BEGIN + " INTEGER, " + END + " INTEGER, "
+    				+ START_DAY + " INTEGER, " + END_DAY + " INTEGER, " + START_TIME + " INTEGER, "
+    				+ END_TIME + " INTEGER);");
+    		db.execSQL("CREATE INDEX instances_begin_end_index ON " + INSTANCES_TABLE
+    				+ "(" + BEGIN + ", " + END + ");");
+    		db.execSQL("CREATE INDEX instances_days_index ON " + INSTANCES_TABLE
+    				+ "(" + START_DAY + ", " + END_DAY + ");");
+    		db.execSQL("CREATE INDEX instances_event_index ON " + INSTANCES_TABLE
+    				+ "(" + EVENT_ROW_ID + ");");
+    		db.execSQL("CREATE TABLE " + WINDOW_TABLE + "(" + WINDOW_BEGIN + " INTEGER, "
+    				+ WINDOW_END + " INTEGER);");
+    	}
+
+    	// The range queries scan (start, end) or (start_day, end_day) from the
+    	// low end, the importer looks rows up by event_id.
+    	private void createIndexes(SQLiteDatabase db){
+    		db.execSQL("CREATE INDEX IF NOT EXISTS events_start_end_index ON " + EVENTS_TABLE
+    				+ "(" + START + ", " + END + ");");
+    		db.execSQL("CREATE INDEX IF NOT EXISTS events_days_index ON " + EVENTS_TABLE
+    				+ "(" + START_DAY + ", " + END_DAY + ");");
+    		db.execSQL("CREATE INDEX IF NOT EXISTS events_event_id_index ON " + EVENTS_TABLE
+    				+ "(" + EVENT_ID + ");");
     	}
     }
 
@@ -81,15 +306,30 @@ public class CalendarProvider extends ContentProvider {
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
 		int count = 0;
 		int num = uriMatcher.match(uri);
-		if(num == 1){
-			count = db.delete(EVENTS_TABLE, selection,selectionArgs);
-		}else if(num == 2){
+		String where = selection;
+		if(num == 2){
 			String id = uri.getPathSegments().get(1);
-			count = db.delete(EVENTS_TABLE, ID + " = " + id + (!TextUtils.isEmpty(selection) ? " AND (" + 
-		               selection + ')' : ""), 
-		               selectionArgs);
+			where = ID + " = " + id + (!TextUtils.isEmpty(selection) ? " AND (" + 
+		               selection + ')' : "");
+		}
+		ChangeNotifier.Days changed = new ChangeNotifier.Days();
+		if(num == 1 || num == 2){
+			synchronized(mInstancesLock){
+				db.beginTransaction();
+				try{
+					deleteInstances(EVENT_ROW_ID + " IN (SELECT " + ID + " FROM "
+							+ EVENTS_TABLE + (!TextUtils.isEmpty(where) ? " WHERE " + where : "")
+							+ ")", selectionArgs, changed);
+					count = db.delete(EVENTS_TABLE, where, selectionArgs);
+					db.setTransactionSuccessful();
+				}finally{
+					db.endTransaction();
+				}
+			}
+		}
+		if(count > 0){
+			mNotifier.add(changed);
 		}
-		getContext().getContentResolver().notifyChange(uri, null);
 		return count;
 	}
 
@@ -100,11 +340,29 @@ public class CalendarProvider extends ContentProvider {
 
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
-		long rowID = db.insert(EVENTS_TABLE,null, values);
+		long rowID;
+		ChangeNotifier.Days changed = new ChangeNotifier.Days();
+		synchronized(mInstancesLock){
+			db.beginTransaction();
+			try{
+				rowID = db.insert(EVENTS_TABLE,null, values);
+				if(rowID > 0){
+					InstanceWriter writer = new InstanceWriter(db, changed);
+					try{
+						writeInstances(writer, rowID, values, mWindowBegin, mWindowEnd);
+					}finally{
+						writer.close();
+					}
+				}
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+		}
 		Uri _uri = null;
 		if(rowID > 0){
 			_uri = ContentUris.withAppendedId(CONTENT_ID_URI_BASE,rowID);
-			getContext().getContentResolver().notifyChange(uri,null);
+			mNotifier.add(changed);
 			
 		}else{
 			throw new SQLException("Failed to insert row into " + uri);
@@ -117,7 +375,183 @@ public class CalendarProvider extends ContentProvider {
 		Context context = getContext();
 		DBHelper = new DatabaseHelper(context);
 		db = DBHelper.getWritableDatabase();
-		return (db == null)? false:true;
+		if(db == null){
+			return false;
+		}
+		mNotifier = new ChangeNotifier(context.getContentResolver(), CONTENT_CHANGED_URI, NOTIFY_WINDOW);
+		Cursor c = db.query(WINDOW_TABLE, new String[] {WINDOW_BEGIN, WINDOW_END}, null, null,
+				null, null, null);
+		try{
+			if(c.moveToFirst()){
+				mWindowBegin = c.getLong(0);
+				mWindowEnd = c.getLong(1);
+			}
+		}finally{
+			c.close();
+		}
+		startBackfills();
+		return true;
+	}
+
+	private void startBackfills() {
+		if(DatabaseUtils.queryNumEntries(db, BACKFILL_TABLE) == 0){
+			return;
+		}
+		new Thread("CalendarProvider backfill"){
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				runBackfills();
+			}
+		}.start();
+	}
+
+	/**
+	 * Runs the backfills queued by onUpgrade, a chunk per transaction, so
+	 * queries and writes get the database in between. The position of each
+	 * backfill is saved with its chunk, so one cut short by the process
+	 * dying picks up where it was on the next start. Chunks only ever
+	 * recompute derived data from the events, so the writes going on around
+	 * them don't need to know about them.
+	 */
+	private void runBackfills() {
+		for(String name : BACKFILLS){
+			long start = DEBUG ? SystemClock.uptimeMillis() : 0;
+			int chunks = 0;
+			while(runBackfillChunk(name)){
+				chunks++;
+			}
+			if(DEBUG && chunks > 0){
+				Log.d(TAG, "Backfilled " + name + " in " + chunks + " chunks, "
+						+ (SystemClock.uptimeMillis() - start) + "ms");
+			}
+		}
+	}
+
+	/**
+	 * Runs the next chunk of a backfill. Returns false once there's nothing
+	 * left to do for it.
+	 */
+	private boolean runBackfillChunk(String name) {
+		ChangeNotifier.Days changed = new ChangeNotifier.Days();
+		boolean done;
+		synchronized(mInstancesLock){
+			db.beginTransaction();
+			try{
+				String[] args = new String[] {name};
+				Cursor c = db.query(BACKFILL_TABLE, new String[] {BACKFILL_POSITION, BACKFILL_LAST},
+						BACKFILL_NAME + "=?", args, null, null, null);
+				Long position;
+				long last;
+				try{
+					if(!c.moveToFirst()){
+						return false;
+					}
+					position = c.isNull(0) ? null : c.getLong(0);
+					last = c.getLong(1);
+				}finally{
+					c.close();
+				}
+				if(position == null){
+					// Rows added after this are taken care of by the
+					// writes themselves
+					long[] range = BACKFILL_EVENT_DAYS.equals(name)
+							? queryLongs("SELECT min(" + START_DAY + ") - 1, max(" + END_DAY
+									+ ") FROM " + INSTANCES_TABLE)
+							: queryLongs("SELECT 0, max(" + ID + ") FROM " + EVENTS_TABLE);
+					position = range[0];
+					last = range[1];
+				}
+				long next;
+				if(position >= last){
+					next = last;
+				}else if(BACKFILL_EVENT_DAYS.equals(name)){
+					next = Math.min(position + BACKFILL_CHUNK_DAYS, last);
+					backfillEventDays((int) position.longValue() + 1, (int) next);
+				}else{
+					next = queryLongs("SELECT max(" + ID + ") FROM (SELECT " + ID + " FROM "
+							+ EVENTS_TABLE + " WHERE " + ID + ">" + position + " AND " + ID + "<="
+							+ last + " ORDER BY " + ID + " LIMIT " + BACKFILL_CHUNK + ")")[0];
+					if(next <= position){
+						next = last;
+					}else if(BACKFILL_INSTANCES.equals(name)){
+						backfillInstances(position, next, changed);
+					}else{
+						backfillSearch(position, next);
+					}
+				}
+				done = next >= last;
+				if(done){
+					db.delete(BACKFILL_TABLE, BACKFILL_NAME + "=?", args);
+				}else{
+					ContentValues values = new ContentValues();
+					values.put(BACKFILL_POSITION, next);
+					values.put(BACKFILL_LAST, last);
+					db.update(BACKFILL_TABLE, values, BACKFILL_NAME + "=?", args);
+				}
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+		}
+		// Once done, no days means event days and search results may all
+		// have changed
+		if(!changed.isEmpty() || done){
+			mNotifier.add(changed);
+		}
+		return !done;
+	}
+
+	// Expands the events with _id in (first, last] again
+	private void backfillInstances(long first, long last, ChangeNotifier.Days changed) {
+		String range = ID + ">" + first + " AND " + ID + "<=" + last;
+		deleteInstances(EVENT_ROW_ID + " IN (SELECT " + ID + " FROM " + EVENTS_TABLE + " WHERE "
+				+ range + ")", null, changed);
+		Cursor c = db.query(EVENTS_TABLE, null, range, null, null, null, null);
+		InstanceWriter writer = new InstanceWriter(db, changed);
+		try{
+			ContentValues event = new ContentValues();
+			while(c.moveToNext()){
+				event.clear();
+				DatabaseUtils.cursorRowToContentValues(c, event);
+				writeInstances(writer, event.getAsLong(ID), event, mWindowBegin, mWindowEnd);
+			}
+		}finally{
+			writer.close();
+			c.close();
+		}
+	}
+
+	// Recounts the julian days [first, last] from the instances
+	private void backfillEventDays(int first, int last) {
+		db.delete(EVENT_DAYS_TABLE, JULIAN_DAY + ">=" + first + " AND " + JULIAN_DAY + "<=" + last,
+				null);
+		addDays(db, countDays(db, START_DAY + "<=" + last + " AND " + END_DAY + ">=" + first, null,
+				first, last));
+	}
+
+	// Indexes the events with _id in (first, last] again
+	private void backfillSearch(long first, long last) {
+		db.delete(SEARCH_TABLE, "docid>" + first + " AND docid<=" + last, null);
+		db.execSQL("INSERT INTO " + SEARCH_TABLE + " (docid, " + EVENT + ", " + LOCATION + ", "
+				+ DESCRIPTION + ") SELECT " + ID + ", " + EVENT + ", " + LOCATION + ", " + DESCRIPTION
+				+ " FROM " + EVENTS_TABLE + " WHERE " + ID + ">" + first + " AND " + ID + "<=" + last);
+	}
+
+	// The first row of a query of numbers, nulls read as 0
+	private long[] queryLongs(String sql) {
+		Cursor c = db.rawQuery(sql, null);
+		try{
+			long[] values = new long[c.getColumnCount()];
+			if(c.moveToFirst()){
+				for(int i = 0; i < values.length; i++){
+					values[i] = c.getLong(i);
+				}
+			}
+			return values;
+		}finally{
+			c.close();
+		}
 	}
 
 	@Override
@@ -133,45 +567,579 @@ public class CalendarProvider extends ContentProvider {
 	    	sqlBuilder.appendWhere(ID + "=?");
 	    	selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,new String[] {uri.getLastPathSegment()});
 	    }else if(uriMatcher.match(uri) == 3){
-	    	sqlBuilder.setProjectionMap(mMap);
-	    	sqlBuilder.appendWhere(START + ">=? OR ");
-	    	sqlBuilder.appendWhere(END + "<=?");
+	    	// Instances overlapping [start, end) in millis
 	    	List<String> list = uri.getPathSegments();
 	    	String start = list.get(1);
 	    	String end = list.get(2);
-	    	selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,new String[] {start,end});
+	    	ensureWindow(Long.parseLong(start), Long.parseLong(end));
+	    	sqlBuilder.setTables(INSTANCES_JOIN);
+	    	sqlBuilder.setProjectionMap(mInstancesMap);
+	    	sqlBuilder.appendWhere(INSTANCES_TABLE + "." + BEGIN + "<? AND " + INSTANCES_TABLE + "." + END + ">?");
+	    	selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] {end,start},selectionArgs);
+	    	// begin comes straight from the (begin, end) index
+	    	if(TextUtils.isEmpty(sortOrder))
+	    		sortOrder = INSTANCES_TABLE + "." + BEGIN + " ASC";
+	    }else if(uriMatcher.match(uri) == 4){
+	    	// Instances overlapping the julian days [first, last]
+	    	List<String> list = uri.getPathSegments();
+	    	String first = list.get(2);
+	    	String last = list.get(3);
+	    	// A day either side covers every time zone
+	    	ensureWindow(julianDayToMillis(Integer.parseInt(first) - 1),
+	    			julianDayToMillis(Integer.parseInt(last) + 2));
+	    	sqlBuilder.setTables(INSTANCES_JOIN);
+	    	sqlBuilder.setProjectionMap(mInstancesMap);
+	    	sqlBuilder.appendWhere(INSTANCES_TABLE + "." + START_DAY + "<=? AND " + INSTANCES_TABLE + "." + END_DAY + ">=?");
+	    	selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] {last,first},selectionArgs);
+	    	if(TextUtils.isEmpty(sortOrder))
+	    		sortOrder = INSTANCES_TABLE + "." + BEGIN + " ASC";
+	    }else if(uriMatcher.match(uri) == 5){
+	    	// Days in [first, last] with at least one instance, straight off
+	    	// the julian_day primary key
+	    	List<String> list = uri.getPathSegments();
+	    	String first = list.get(1);
+	    	String last = list.get(2);
+	    	ensureWindow(julianDayToMillis(Integer.parseInt(first) - 1),
+	    			julianDayToMillis(Integer.parseInt(last) + 2));
+	    	sqlBuilder.setTables(EVENT_DAYS_TABLE);
+	    	sqlBuilder.setProjectionMap(mEventDaysMap);
+	    	sqlBuilder.appendWhere(JULIAN_DAY + ">=? AND " + JULIAN_DAY + "<=? AND " + EVENT_COUNT + ">0");
+	    	selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] {first,last},selectionArgs);
+	    	if(TextUtils.isEmpty(sortOrder))
+	    		sortOrder = JULIAN_DAY + " ASC";
+	    	Cursor c = sqlBuilder.query(db, projection, selection, selectionArgs,null,null, sortOrder);
+	    	// The counts change with the events
+	    	c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+	    	return c;
+	    }else if(uriMatcher.match(uri) == 6){
+	    	// The lookup goes through the full text index, so it doesn't
+	    	// slow down with the size of the table
+	    	String match = toMatchQuery(uri.getLastPathSegment());
+	    	sqlBuilder.setTables(SEARCH_JOIN);
+	    	sqlBuilder.setProjectionMap(mSearchMap);
+	    	if(match == null){
+	    		// Nothing to search for
+	    		sqlBuilder.appendWhere("0");
+	    	}else{
+	    		sqlBuilder.appendWhere(SEARCH_TABLE + " MATCH ?");
+	    		selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] {match},selectionArgs);
+	    	}
+	    	if(TextUtils.isEmpty(sortOrder))
+	    		sortOrder = SEARCH_RANK_EXPRESSION + " ASC, " + EVENTS_TABLE + "." + START + " ASC";
+	    	String limit = null;
+	    	String limitParam = uri.getQueryParameter(LIMIT);
+	    	if(limitParam != null){
+	    		String offsetParam = uri.getQueryParameter(OFFSET);
+	    		limit = (offsetParam != null ? parsePaging(OFFSET, offsetParam) + "," : "")
+	    				+ parsePaging(LIMIT, limitParam);
+	    	}
+	    	Cursor c = sqlBuilder.query(db, projection, selection, selectionArgs,null,null, sortOrder, limit);
+	    	c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+	    	return c;
 	    }
-	    if(sortOrder == null || sortOrder == "")
-	    	sortOrder = START + " COLLATE LOCALIZED ASC";
+	    // start is an integer, so the order can come straight from the
+	    // (start, end) index
+	    if(TextUtils.isEmpty(sortOrder))
+	    	sortOrder = START + " ASC";
 		Cursor c = sqlBuilder.query(db, projection, selection, selectionArgs,null,null, sortOrder);
-		c.setNotificationUri(getContext().getContentResolver(), uri);
+		// Changes go out under CONTENT_CHANGED_URI, a descendant of CONTENT_URI
+		c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
 		return c;
 	}
 
+	/**
+	 * Parses the limit or offset parameter of a search. Negative values
+	 * count as 0.
+	 */
+	private static int parsePaging(String name, String value){
+		try{
+			return Math.max(0, Integer.parseInt(value));
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad " + name + " " + value);
+		}
+	}
+
 	@Override
 	public int update(Uri uri, ContentValues values, String selection,
 			String[] selectionArgs) {
 		int count = 0;
 		int num = uriMatcher.match(uri);
+		String where;
 		if(num == 1){
-			count = db.update(EVENTS_TABLE, values, selection, selectionArgs);
+			where = selection;
 		}else if(num == 2){
-			count = db.update(EVENTS_TABLE, values, ID + " = " + uri.getPathSegments().get(1) + (!TextUtils.isEmpty(selection) ? " AND (" + 
-	                  selection + ')' : ""), 
-	                  selectionArgs);
+			where = ID + " = " + uri.getPathSegments().get(1) + (!TextUtils.isEmpty(selection) ? " AND (" + 
+	                  selection + ')' : "");
 		}else{
 			throw new IllegalArgumentException(
 		            "Unknown URI " + uri);
 		}
-		getContext().getContentResolver().notifyChange(uri, null);
+		ChangeNotifier.Days changed = new ChangeNotifier.Days();
+		synchronized(mInstancesLock){
+			db.beginTransaction();
+			try{
+				// Only the updated series are expanded again
+				long[] ids = queryIds(where, selectionArgs);
+				count = db.update(EVENTS_TABLE, values, where, selectionArgs);
+				rewriteInstances(ids, changed);
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+		}
+		if(count > 0){
+			mNotifier.add(changed);
+		}
+		return count;
+	}
+
+	/**
+	 * Inserts all rows in one transaction, reusing a compiled statement for
+	 * runs of rows with the same columns, and marks the days of all the rows
+	 * changed at once.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		if(uriMatcher.match(uri) != 1){
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+		long start = PROFILE ? SystemClock.uptimeMillis() : 0;
+		int count = 0;
+		String[] columns = null;
+		SQLiteStatement statement = null;
+		InstanceWriter writer = null;
+		ChangeNotifier.Days changed = new ChangeNotifier.Days();
+		synchronized(mInstancesLock){
+			db.beginTransaction();
+			try{
+				writer = new InstanceWriter(db, changed);
+				for(ContentValues row : values){
+					long rowID;
+					if(row.size() == 0){
+						rowID = db.insert(EVENTS_TABLE, null, row);
+					}else{
+						if(statement == null || !hasColumns(row, columns)){
+							if(statement != null){
+								statement.close();
+							}
+							columns = row.keySet().toArray(new String[row.size()]);
+							statement = compileInsert(columns);
+						}
+						for(int i = 0; i < columns.length; i++){
+							DatabaseUtils.bindObjectToProgram(statement, i + 1, row.get(columns[i]));
+						}
+						rowID = statement.executeInsert();
+					}
+					if(rowID <= 0){
+						throw new SQLException("Failed to insert row into " + uri);
+					}
+					writeInstances(writer, rowID, row, mWindowBegin, mWindowEnd);
+					count++;
+				}
+				db.setTransactionSuccessful();
+			}finally{
+				if(statement != null){
+					statement.close();
+				}
+				if(writer != null){
+					writer.close();
+				}
+				db.endTransaction();
+			}
+		}
+		if(count > 0){
+			mNotifier.add(changed);
+		}
+		if(PROFILE){
+			long elapsed = Math.max(1, SystemClock.uptimeMillis() - start);
+			Log.d(TAG, "bulkInsert " + count + " rows in " + elapsed + "ms, "
+					+ (count * 1000L / elapsed) + " rows/s");
+		}
 		return count;
 	}
+
+	/**
+	 * Applies the operations in one transaction. Notifications are held
+	 * back until it is committed, so the days of all the operations go out
+	 * together.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		ContentProviderResult[] results;
+		mNotifier.hold();
+		// The operations take mInstancesLock too, take it before the
+		// transaction like everything else
+		try{
+			synchronized(mInstancesLock){
+				db.beginTransaction();
+				try{
+					results = super.applyBatch(operations);
+					db.setTransactionSuccessful();
+				}finally{
+					db.endTransaction();
+				}
+			}
+		}finally{
+			mNotifier.release();
+		}
+		return results;
+	}
+
+	private SQLiteStatement compileInsert(String[] columns) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(EVENTS_TABLE).append(" (");
+		for(int i = 0; i < columns.length; i++){
+			sql.append(i == 0 ? "" : ", ").append(columns[i]);
+		}
+		sql.append(") VALUES (");
+		for(int i = 0; i < columns.length; i++){
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(")");
+		return db.compileStatement(sql.toString());
+	}
+
+	/**
+	 * Makes sure recurring events have been expanded over [begin, end). The
+	 * window only grows. When it has to, it grows by at least WINDOW_STEP,
+	 * and only the newly covered ranges are expanded.
+	 */
+	private void ensureWindow(long begin, long end) {
+		synchronized(mInstancesLock){
+			if(mWindowBegin <= begin && end <= mWindowEnd){
+				return;
+			}
+			long newBegin;
+			long newEnd;
+			if(mWindowBegin > mWindowEnd){
+				long now = System.currentTimeMillis();
+				newBegin = Math.min(begin, now - WINDOW_SPAN);
+				newEnd = Math.max(end, now + WINDOW_SPAN);
+			}else{
+				newBegin = begin < mWindowBegin ? begin - WINDOW_STEP : mWindowBegin;
+				newEnd = end > mWindowEnd ? end + WINDOW_STEP : mWindowEnd;
+			}
+			long start = DEBUG ? SystemClock.uptimeMillis() : 0;
+			db.beginTransaction();
+			try{
+				// Must agree with RecurrenceExpander.isRecurring(), an empty
+				// rule would otherwise get its single instance again
+				Cursor c = db.query(EVENTS_TABLE, null, "IFNULL(" + RRULE + ",'')<>'' OR IFNULL("
+						+ RDATE + ",'')<>''", null, null, null, null);
+				// Expanding further doesn't change what a query returns, so
+				// the new instances aren't announced
+				InstanceWriter writer = new InstanceWriter(db, null);
+				try{
+					ContentValues event = new ContentValues();
+					while(c.moveToNext()){
+						event.clear();
+						DatabaseUtils.cursorRowToContentValues(c, event);
+						long rowID = event.getAsLong(ID);
+						if(mWindowBegin > mWindowEnd){
+							writeInstances(writer, rowID, event, newBegin, newEnd);
+						}else{
+							writeInstances(writer, rowID, event, newBegin, mWindowBegin);
+							writeInstances(writer, rowID, event, mWindowEnd, newEnd);
+						}
+					}
+				}finally{
+					writer.close();
+					c.close();
+				}
+				db.delete(WINDOW_TABLE, null, null);
+				ContentValues window = new ContentValues();
+				window.put(WINDOW_BEGIN, newBegin);
+				window.put(WINDOW_END, newEnd);
+				db.insert(WINDOW_TABLE, null, window);
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+			if(DEBUG){
+				Log.d(TAG, "Expanded instances window to [" + newBegin + ", " + newEnd + ") in "
+						+ (SystemClock.uptimeMillis() - start) + "ms");
+			}
+			mWindowBegin = newBegin;
+			mWindowEnd = newEnd;
+		}
+	}
+
+	/**
+	 * Writes the instances of an event. An event without a recurrence is its
+	 * own single instance whatever the window. A recurring one gets the
+	 * instances that start in [rangeBegin, rangeEnd).
+	 */
+	private void writeInstances(InstanceWriter writer, long rowID, ContentValues event,
+			long rangeBegin, long rangeEnd) {
+		Long start = event.getAsLong(START);
+		if(start == null){
+			return;
+		}
+		String rrule = event.getAsString(RRULE);
+		String rdate = event.getAsString(RDATE);
+		long duration = 0;
+		String durationValue = event.getAsString(DURATION);
+		Long end = event.getAsLong(END);
+		try{
+			if(!TextUtils.isEmpty(durationValue)){
+				duration = RecurrenceExpander.parseDuration(durationValue);
+			}else if(end != null && end > start){
+				duration = end - start;
+			}
+		}catch(RuntimeException e){
+			Log.w(TAG, "Bad duration " + durationValue + " for event " + rowID);
+		}
+
+		if(!RecurrenceExpander.isRecurring(rrule, rdate)){
+			writer.write(rowID, start, start + duration);
+			return;
+		}
+		if(rangeBegin >= rangeEnd){
+			return;
+		}
+		long[] starts;
+		try{
+			starts = RecurrenceExpander.expand(start, event.getAsString(TIMEZONE), rrule, rdate,
+					event.getAsString(EXDATE), rangeBegin, rangeEnd);
+		}catch(RuntimeException e){
+			Log.w(TAG, "Can't expand " + rrule + " of event " + rowID + ", using its first instance", e);
+			starts = start >= rangeBegin && start < rangeEnd ? new long[] {start} : new long[0];
+		}
+		for(long instanceStart : starts){
+			writer.write(rowID, instanceStart, instanceStart + duration);
+		}
+	}
+
+	/**
+	 * Replaces the instances of the given events with ones expanded from
+	 * their current rows.
+	 */
+	private void rewriteInstances(long[] ids, ChangeNotifier.Days changed) {
+		if(ids.length == 0){
+			return;
+		}
+		InstanceWriter writer = new InstanceWriter(db, changed);
+		ContentValues event = new ContentValues();
+		try{
+			for(long id : ids){
+				String[] args = new String[] {String.valueOf(id)};
+				deleteInstances(EVENT_ROW_ID + "=?", args, changed);
+				Cursor c = db.query(EVENTS_TABLE, null, ID + "=?", args, null, null, null);
+				try{
+					if(c.moveToFirst()){
+						event.clear();
+						DatabaseUtils.cursorRowToContentValues(c, event);
+						writeInstances(writer, id, event, mWindowBegin, mWindowEnd);
+					}
+				}finally{
+					c.close();
+				}
+			}
+		}finally{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Deletes instances and takes them off the event days counts.
+	 */
+	private void deleteInstances(String where, String[] whereArgs, ChangeNotifier.Days changed) {
+		SparseIntArray days = countDays(db, where, whereArgs, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		for(int i = 0; i < days.size(); i++){
+			changed.add(days.keyAt(i));
+			days.put(days.keyAt(i), -days.valueAt(i));
+		}
+		db.delete(INSTANCES_TABLE, where, whereArgs);
+		addDays(db, days);
+		db.delete(EVENT_DAYS_TABLE, EVENT_COUNT + "<=0", null);
+	}
+
+	/**
+	 * Counts the instances matching where on each julian day they cover,
+	 * within [firstDay, lastDay].
+	 */
+	private static SparseIntArray countDays(SQLiteDatabase db, String where, String[] whereArgs,
+			int firstDay, int lastDay) {
+		SparseIntArray days = new SparseIntArray();
+		Cursor c = db.query(INSTANCES_TABLE, new String[] {START_DAY, END_DAY}, where, whereArgs,
+				null, null, null);
+		try{
+			while(c.moveToNext()){
+				int last = Math.min(c.getInt(1), lastDay);
+				for(int day = Math.max(c.getInt(0), firstDay); day <= last; day++){
+					days.put(day, days.get(day) + 1);
+				}
+			}
+		}finally{
+			c.close();
+		}
+		return days;
+	}
+
+	private static void addDays(SQLiteDatabase db, SparseIntArray days) {
+		DayCounter counter = new DayCounter(db);
+		try{
+			for(int i = 0; i < days.size(); i++){
+				counter.add(days.keyAt(i), days.valueAt(i));
+			}
+		}finally{
+			counter.close();
+		}
+	}
+
+	/**
+	 * Turns what the user typed into an FTS query that ANDs a prefix match
+	 * for each word, or null if there are no words in it. Everything but
+	 * letters and digits separates words, so the query can't contain FTS
+	 * syntax.
+	 */
+	/* package */ static String toMatchQuery(String query) {
+		if(query == null){
+			return null;
+		}
+		StringBuilder match = new StringBuilder();
+		int length = query.length();
+		int i = 0;
+		while(i < length){
+			while(i < length && !Character.isLetterOrDigit(query.charAt(i))){
+				i++;
+			}
+			int start = i;
+			while(i < length && Character.isLetterOrDigit(query.charAt(i))){
+				i++;
+			}
+			if(i > start){
+				if(match.length() > 0){
+					match.append(' ');
+				}
+				match.append(query, start, i).append('*');
+			}
+		}
+		return match.length() > 0 ? match.toString() : null;
+	}
+
+	private long[] queryIds(String where, String[] whereArgs) {
+		Cursor c = db.query(EVENTS_TABLE, new String[] {ID}, where, whereArgs, null, null, null);
+		try{
+			long[] ids = new long[c.getCount()];
+			int i = 0;
+			while(c.moveToNext() && i < ids.length){
+				ids[i++] = c.getLong(0);
+			}
+			return ids;
+		}finally{
+			c.close();
+		}
+	}
+
+	// Start of the julian day in UTC
+	private static long julianDayToMillis(int julianDay) {
+		return (julianDay - Time.EPOCH_JULIAN_DAY) * DateUtils.DAY_IN_MILLIS;
+	}
+
+	/**
+	 * Adds to the instance counts of julian days.
+	 */
+	private static class DayCounter {
+		private final SQLiteStatement mCreate;
+		private final SQLiteStatement mAdd;
+
+		DayCounter(SQLiteDatabase db) {
+			mCreate = db.compileStatement("INSERT OR IGNORE INTO " + EVENT_DAYS_TABLE + " ("
+					+ JULIAN_DAY + ", " + EVENT_COUNT + ") VALUES (?, 0)");
+			mAdd = db.compileStatement("UPDATE " + EVENT_DAYS_TABLE + " SET " + EVENT_COUNT + " = "
+					+ EVENT_COUNT + " + ? WHERE " + JULIAN_DAY + " = ?");
+		}
+
+		void add(int julianDay, int delta) {
+			if(delta > 0){
+				mCreate.bindLong(1, julianDay);
+				mCreate.execute();
+			}
+			mAdd.bindLong(1, delta);
+			mAdd.bindLong(2, julianDay);
+			mAdd.execute();
+		}
+
+		void close() {
+			mCreate.close();
+			mAdd.close();
+		}
+	}
+
+	/**
+	 * Inserts instance rows, computing their days and minutes in the default
+	 * zone the way ImportEntries does for events, and counts them in the
+	 * event days table. The days are added to changed, if there is one.
+	 */
+	private static class InstanceWriter {
+		private final SQLiteStatement mInsert;
+		private final DayCounter mDays;
+		private final ChangeNotifier.Days mChanged;
+		private final TimeZone mTimeZone = TimeZone.getDefault();
+		private final Calendar mCalendar = Calendar.getInstance(mTimeZone);
+
+		InstanceWriter(SQLiteDatabase db, ChangeNotifier.Days changed) {
+			mDays = new DayCounter(db);
+			mChanged = changed;
+			mInsert = db.compileStatement("INSERT INTO " + INSTANCES_TABLE + " (" + EVENT_ROW_ID
+					+ ", " + BEGIN + ", " + END + ", " + START_DAY + ", " + END_DAY + ", "
+					+ START_TIME + ", " + END_TIME + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+		}
+
+		void write(long rowID, long begin, long end) {
+			mInsert.bindLong(1, rowID);
+			mInsert.bindLong(2, begin);
+			mInsert.bindLong(3, end);
+			int startDay = Time.getJulianDay(begin,
+					TimeUnit.MILLISECONDS.toSeconds(mTimeZone.getOffset(begin)));
+			int endDay = Time.getJulianDay(end,
+					TimeUnit.MILLISECONDS.toSeconds(mTimeZone.getOffset(end)));
+			mInsert.bindLong(4, startDay);
+			mInsert.bindLong(5, endDay);
+			mInsert.bindLong(6, minuteOfDay(begin));
+			mInsert.bindLong(7, minuteOfDay(end));
+			mInsert.executeInsert();
+			for(int day = startDay; day <= endDay; day++){
+				mDays.add(day, 1);
+			}
+			if(mChanged != null && startDay <= endDay){
+				mChanged.add(startDay);
+				mChanged.add(endDay);
+			}
+		}
+
+		private int minuteOfDay(long millis) {
+			mCalendar.setTimeInMillis(millis);
+			return mCalendar.get(Calendar.HOUR_OF_DAY) * 60 + mCalendar.get(Calendar.MINUTE);
+		}
+
+		void close() {
+			mInsert.close();
+			mDays.close();
+		}
+	}
+
+	private static boolean hasColumns(ContentValues row, String[] columns) {
+		if(row.size() != columns.length){
+			return false;
+		}
+		for(String column : columns){
+			if(!row.containsKey(column)){
+				return false;
+			}
+		}
+		return true;
+	}
 	
 	static{
 		uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 		uriMatcher.addURI(AUTHORITY,EVENTS_TABLE,1);
 		uriMatcher.addURI(AUTHORITY,EVENTS_TABLE + "/#",2);
 		uriMatcher.addURI(AUTHORITY, EVENTS_TABLE+"/#/#", 3);
+		uriMatcher.addURI(AUTHORITY, EVENTS_TABLE+"/days/#/#", 4);
+		uriMatcher.addURI(AUTHORITY, EVENT_DAYS_TABLE+"/#/#", 5);
+		uriMatcher.addURI(AUTHORITY, "search/*", 6);
 		
 		mMap = new HashMap<String, String>();
 		mMap.put(ID, ID);
@@ -186,6 +1154,33 @@ public class CalendarProvider extends ContentProvider {
 		mMap.put(END_DAY, END_DAY);
 		mMap.put(START_TIME, START_TIME);
 		mMap.put(END_TIME, END_TIME);
+		mMap.put(CHECKSUM, CHECKSUM);
+		mMap.put(RRULE, RRULE);
+		mMap.put(RDATE, RDATE);
+		mMap.put(EXDATE, EXDATE);
+		mMap.put(DURATION, DURATION);
+		mMap.put(TIMEZONE, TIMEZONE);
+
+		// The event's columns, with the times and days of the instance
+		mInstancesMap = new HashMap<String, String>();
+		for(String column : mMap.keySet()){
+			mInstancesMap.put(column, EVENTS_TABLE + "." + column + " AS " + column);
+		}
+		for(String column : new String[] {START_DAY, END_DAY, START_TIME, END_TIME}){
+			mInstancesMap.put(column, INSTANCES_TABLE + "." + column + " AS " + column);
+		}
+		mInstancesMap.put(START, INSTANCES_TABLE + "." + BEGIN + " AS " + START);
+		mInstancesMap.put(END, INSTANCES_TABLE + "." + END + " AS " + END);
+
+		mEventDaysMap = new HashMap<String, String>();
+		mEventDaysMap.put(JULIAN_DAY, JULIAN_DAY);
+		mEventDaysMap.put(EVENT_COUNT, EVENT_COUNT);
+
+		mSearchMap = new HashMap<String, String>();
+		for(String column : mMap.keySet()){
+			mSearchMap.put(column, EVENTS_TABLE + "." + column + " AS " + column);
+		}
+		mSearchMap.put(SEARCH_RANK, SEARCH_RANK_EXPRESSION + " AS " + SEARCH_RANK);
 	}
 
 }
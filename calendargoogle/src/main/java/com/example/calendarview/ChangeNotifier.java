@@ -0,0 +1,159 @@
+package com.example.calendarview;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Collects the julian days touched by CalendarProvider writes and sends one
+ * change notification for them per window, instead of one per write. The
+ * notification uri is base/first/last for the days [first, last], or just
+ * base when the days aren't known.
+ *
+ * While a batch is held open with {@link #hold()} nothing is sent, the days
+ * pile up until the matching {@link #release()}.
+ */
+/* package */ class ChangeNotifier {
+    private static final String TAG = "ChangeNotifier";
+    private static final boolean DEBUG = false;
+
+    private final ContentResolver mResolver;
+    private final Uri mBaseUri;
+    private final long mWindowMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Empty while mFirstDay > mLastDay
+    private int mFirstDay = Integer.MAX_VALUE;
+    private int mLastDay = Integer.MIN_VALUE;
+    private boolean mAllDays;
+    private boolean mScheduled;
+    private int mHolds;
+    // Writes coalesced into the pending notification, for the debug log
+    private int mPending;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Days changed by a single write, handed to {@link #add(Days)} once the
+     * write has been committed.
+     */
+    static class Days {
+        int first = Integer.MAX_VALUE;
+        int last = Integer.MIN_VALUE;
+
+        void add(int julianDay) {
+            if (julianDay < first) {
+                first = julianDay;
+            }
+            if (julianDay > last) {
+                last = julianDay;
+            }
+        }
+
+        boolean isEmpty() {
+            return first > last;
+        }
+    }
+
+    ChangeNotifier(ContentResolver resolver, Uri baseUri, long windowMillis) {
+        mResolver = resolver;
+        mBaseUri = baseUri;
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Marks the days of a committed write as changed. A write that changed
+     * rows without touching any day marks everything.
+     */
+    synchronized void add(Days days) {
+        if (days.isEmpty()) {
+            mAllDays = true;
+        } else {
+            mFirstDay = Math.min(mFirstDay, days.first);
+            mLastDay = Math.max(mLastDay, days.last);
+        }
+        mPending++;
+        schedule();
+    }
+
+    /**
+     * Holds the notifications back until {@link #release()}, for writes that
+     * are only committed at the end of a batch.
+     */
+    synchronized void hold() {
+        mHolds++;
+    }
+
+    synchronized void release() {
+        mHolds--;
+        schedule();
+    }
+
+    private void schedule() {
+        if (mHolds > 0 || mScheduled || (!mAllDays && mFirstDay > mLastDay)) {
+            return;
+        }
+        mScheduled = true;
+        mHandler.postDelayed(mFlush, mWindowMillis);
+    }
+
+    private void flush() {
+        Uri uri;
+        synchronized (this) {
+            mScheduled = false;
+            if (mHolds > 0) {
+                // release() reschedules
+                return;
+            }
+            if (mAllDays) {
+                uri = mBaseUri;
+            } else if (mFirstDay <= mLastDay) {
+                uri = mBaseUri.buildUpon().appendPath(String.valueOf(mFirstDay))
+                        .appendPath(String.valueOf(mLastDay)).build();
+            } else {
+                return;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Sending " + uri + " for " + mPending + " writes");
+            }
+            mFirstDay = Integer.MAX_VALUE;
+            mLastDay = Integer.MIN_VALUE;
+            mAllDays = false;
+            mPending = 0;
+        }
+        mResolver.notifyChange(uri, null);
+    }
+
+    /**
+     * Returns whether a change notification may affect the julian days
+     * [firstJulianDay, lastJulianDay]. Anything that doesn't name a day range
+     * is taken to affect every day.
+     */
+    static boolean affectsDays(Uri baseUri, Uri changed, int firstJulianDay,
+            int lastJulianDay) {
+        if (changed == null) {
+            return true;
+        }
+        List<String> segments = changed.getPathSegments();
+        int base = baseUri.getPathSegments().size();
+        if (segments.size() != base + 2) {
+            return true;
+        }
+        try {
+            int first = Integer.parseInt(segments.get(base));
+            int last = Integer.parseInt(segments.get(base + 1));
+            return first <= lastJulianDay && last >= firstJulianDay;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+}
@@ -227,6 +227,7 @@ public class DayFragment extends Fragment implements CalendarController.EventHan
     }
 
     public void eventsChanged() {
+        mEventLoader.invalidateCache();
         if (mViewSwitcher == null) {
             return;
         }
@@ -0,0 +1,155 @@
+package com.example.calendarview;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bitmaps of fixed height slices of a DayView's day, see DayView.drawTiles().
+ * Tiles are indexed by their position from the top of the day and kept in
+ * LRU order, bounded by the bytes their bitmaps take.
+ *
+ * All tiles go stale when the layout they were drawn with changes, through
+ * {@link #setLayout}. What only affects some tiles, the highlighted events
+ * and where the current time cuts today's column, is kept per tile and
+ * checked with {@link Tile#isValid}.
+ */
+/* package */ class DayTileCache {
+    private final LinkedHashMap<Integer, Tile> mTiles =
+            new LinkedHashMap<Integer, Tile>(16, 0.75f, true);
+    private int mBytes;
+    private int mMaxBytes = Integer.MAX_VALUE;
+
+    private int mGeneration;
+    private int mWidth;
+    private int mHoursWidth;
+    private int mCellHeight;
+    private int mNumDays;
+    private int mFirstJulianDay;
+    private int mTodayJulianDay;
+
+    private int mFrameTiles;
+    private int mFrameRendered;
+    private long mFrameRenderNanos;
+
+    static class Tile {
+        final Bitmap bitmap;
+        private boolean mValid;
+        private Event mClicked;
+        private Event mPressed;
+        private int mFutureLineY;
+
+        Tile(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        /**
+         * Returns whether the tile was drawn with the same highlighted
+         * events and current time cut, clamped to the tile, as given.
+         */
+        boolean isValid(Event clicked, Event pressed, int futureLineY) {
+            return mValid && mClicked == clicked && mPressed == pressed
+                    && mFutureLineY == futureLineY;
+        }
+
+        void setValid(Event clicked, Event pressed, int futureLineY) {
+            mValid = true;
+            mClicked = clicked;
+            mPressed = pressed;
+            mFutureLineY = futureLineY;
+        }
+    }
+
+    /**
+     * Sets what all the tiles are drawn from, and marks them stale if any of
+     * it changed. generation is bumped by the view whenever its events are
+     * replaced.
+     */
+    void setLayout(int generation, int width, int hoursWidth, int cellHeight, int numDays,
+            int firstJulianDay, int todayJulianDay) {
+        if (generation == mGeneration && width == mWidth && hoursWidth == mHoursWidth
+                && cellHeight == mCellHeight && numDays == mNumDays
+                && firstJulianDay == mFirstJulianDay && todayJulianDay == mTodayJulianDay) {
+            return;
+        }
+        mGeneration = generation;
+        mWidth = width;
+        mHoursWidth = hoursWidth;
+        mCellHeight = cellHeight;
+        mNumDays = numDays;
+        mFirstJulianDay = firstJulianDay;
+        mTodayJulianDay = todayJulianDay;
+        for (Tile tile : mTiles.values()) {
+            tile.mValid = false;
+        }
+    }
+
+    /**
+     * Sets the most bytes of bitmaps to keep. The least recently used tiles
+     * are dropped first, but never the last one asked for.
+     */
+    void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * Returns the tile at index with a bitmap of the given size, which has
+     * to be drawn if it isn't {@link Tile#isValid}.
+     */
+    Tile get(int index, int width, int height) {
+        Tile tile = mTiles.get(index);
+        if (tile != null && (tile.bitmap.getWidth() != width
+                || tile.bitmap.getHeight() != height)) {
+            mTiles.remove(index);
+            mBytes -= tile.bitmap.getByteCount();
+            tile = null;
+        }
+        if (tile == null) {
+            tile = new Tile(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+            mTiles.put(index, tile);
+            mBytes += tile.bitmap.getByteCount();
+            trim();
+        }
+        mFrameTiles++;
+        return tile;
+    }
+
+    /**
+     * Records that a tile took renderNanos to draw.
+     */
+    void rendered(long renderNanos) {
+        mFrameRendered++;
+        mFrameRenderNanos += renderNanos;
+    }
+
+    void clear() {
+        // Dropped rather than recycled, a display list may still draw them
+        mTiles.clear();
+        mBytes = 0;
+    }
+
+    private void trim() {
+        Iterator<Tile> it = mTiles.values().iterator();
+        while (mBytes > mMaxBytes && mTiles.size() > 1) {
+            Tile tile = it.next();
+            it.remove();
+            mBytes -= tile.bitmap.getByteCount();
+        }
+    }
+
+    /**
+     * Returns the tiles drawn and reused since the last call, and starts
+     * counting the next frame.
+     */
+    String takeFrameStats() {
+        String stats = "tiles: " + (mFrameTiles - mFrameRendered) + " reused, " + mFrameRendered
+                + " drawn in " + mFrameRenderNanos / 1000 + "us, " + mTiles.size()
+                + " cached in " + mBytes / 1024 + "KB";
+        mFrameTiles = 0;
+        mFrameRendered = 0;
+        mFrameRenderNanos = 0;
+        return stats;
+    }
+}
@@ -30,6 +30,7 @@ import android.content.DialogInterface;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
@@ -98,6 +99,14 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
     private static String TAG = "DayView";
     private static boolean DEBUG = false;
     private static boolean DEBUG_SCALING = false;
+    // Logs the time spent drawing the event grid on each frame
+    private static boolean PROFILE_DRAW = false;
+    // Draw the day into cached tiles of TILE_HOURS hours and composite them
+    // while scrolling, see drawTiles()
+    private static boolean USE_TILES = false;
+    private static final int TILE_HOURS = 3;
+    // Tile memory kept per DayView, though the tiles on screen are always kept
+    private static final int TILE_CACHE_BYTES = 12 * 1024 * 1024;
     private static final String PERIOD_SPACE = ". ";
 
     private static float mScale = 0; // Used for supporting different screen densities
@@ -310,8 +319,13 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
 
     private ArrayList<Event> mEvents = new ArrayList<Event>();
     private ArrayList<Event> mAllDayEvents = new ArrayList<Event>();
-    private StaticLayout[] mLayouts = null;
-    private StaticLayout[] mAllDayLayouts = null;
+    // Column-oriented copy of mEvents read by the render path
+    private final EventStore mEventStore = new EventStore();
+    // Timed events of mEvents bucketed by julian day, rebuilt on every load
+    private final EventDayIndex mEventDayIndex = new EventDayIndex();
+    // Event text layouts, shared by the DayViews so they survive reloads and
+    // view switches
+    private static final EventLayoutCache sLayoutCache = new EventLayoutCache();
     private int mSelectionDay;        // Julian day
     private int mSelectionHour;
 
@@ -341,6 +355,32 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
     private final Paint mEventTextPaint = new Paint();
     private final Paint mSelectionPaint = new Paint();
     private float[] mLines;
+    // One hour of the static grid background, see drawGridLayer(). The
+    // parameters it was rendered for are kept to know when it is stale.
+    private Bitmap mGridLayer;
+    private final Paint mGridLayerPaint = new Paint();
+    private int mGridLayerCellHeight;
+    private int mGridLayerNumDays;
+    private int mGridLayerHoursWidth;
+    private int mGridLayerToday;
+    private final DayTileCache mTileCache = new DayTileCache();
+    private final Canvas mTileCanvas = new Canvas();
+    // Bumped whenever mEvents is replaced, to mark the tiles stale
+    private int mEventsGeneration;
+    // This page at rest, see updateSnapshot(). The state it was drawn in is
+    // kept to know when it is stale during a swipe, and it is discarded when
+    // a swipe starts and when the switch animation ends.
+    private Bitmap mSnapshot;
+    private final Canvas mSnapshotCanvas = new Canvas();
+    private boolean mSnapshotValid;
+    private boolean mDrawingSnapshot;
+    private int mSnapshotFirstJulianDay;
+    private int mSnapshotEventsGeneration;
+    private int mSnapshotEventsAlpha;
+    private int mSnapshotViewStartY;
+    private int mSnapshotCellHeight;
+    private int mSnapshotSelectionDay;
+    private int mSnapshotMinute;
 
     private int mFirstDayOfWeek; // First day of the week
 
@@ -354,6 +394,9 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
     private boolean mRemeasure = true;
 
     private final EventLoader mEventLoader;
+    // What this view installs on mEventLoader, kept until the widths,
+    // paint or minimum duration it was built for change
+    private TextPremeasurer mPremeasurer;
     protected final EventGeometry mEventGeometry;
 
     private static float GRID_LINE_LEFT_MARGIN = 0;
@@ -1329,7 +1372,16 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
 
         final long minimumDurationMillis = (long)
                 (MIN_EVENT_HEIGHT * DateUtils.MINUTE_IN_MILLIS / (mCellHeight / 60.0f));
-        Event.computePositions(mEvents, minimumDurationMillis);
+        Event.computePositions(mEventStore, minimumDurationMillis);
+        if (mViewWidth > 0) {
+            if (mPremeasurer == null || !mPremeasurer.matches(this, minimumDurationMillis)) {
+                mPremeasurer = new TextPremeasurer(this, minimumDurationMillis);
+            }
+            // The views of a DayFragment share its loader, and the last to
+            // remeasure premeasures for all of them. They are laid out alike,
+            // so they want the same layouts.
+            mEventLoader.setPremeasurer(mPremeasurer);
+        }
 
         // Compute the top of our reachable view
         mMaxViewStartY = HOUR_GAP + 24 * (mCellHeight + HOUR_GAP) - mGridAreaHeight;
@@ -1806,8 +1858,13 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         public void onAnimationEnd(Animation animation) {
             DayView view = (DayView) mViewSwitcher.getCurrentView();
             view.mViewStartX = 0;
+            // The last frames were drawn from the snapshot, which is only
+            // good for this switch
+            view.mSnapshotValid = false;
+            view.invalidate();
             view = (DayView) mViewSwitcher.getNextView();
             view.mViewStartX = 0;
+            view.mSnapshotValid = false;
 
             if (mCounter == sCounter) {
                 mController.sendEvent(this, EventType.GO_TO, mStart, mEnd, null, -1,
@@ -2005,6 +2062,27 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         }
     };
 
+    /**
+     * Hands the events of a previous load back to the Event pool, except for
+     * the ones this view still points at.
+     */
+    private void recycleEvents(ArrayList<Event> oldEvents) {
+        for (Event e : oldEvents) {
+            if (e == mSelectedEvent || e == mPrevSelectedEvent || e == mClickedEvent
+                    || e == mSavedClickedEvent || e == mSelectedEventForAccessibility
+                    || e == mLastSelectedEventForAccessibility || mSelectedEvents.contains(e)) {
+                // Its neighbors may be about to be reused for other events
+                e.nextUp = null;
+                e.nextDown = null;
+                e.nextLeft = null;
+                e.nextRight = null;
+                continue;
+            }
+            Event.recycle(e);
+        }
+        oldEvents.clear();
+    }
+
     /* package */ void reloadEvents() {
         // Protect against this being called before this view has been
         // initialized.
@@ -2036,9 +2114,12 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         // load events in the background
 //        mContext.startProgressSpinner();
         final ArrayList<Event> events = new ArrayList<Event>();
+        final long allocatedBefore = Event.getAllocatedCount();
+        final long reusedBefore = Event.getReusedCount();
         mEventLoader.loadEventsInBackground(mNumDays, events, mFirstJulianDay, new Runnable() {
             public void run() {
                 boolean fadeinEvents = mFirstJulianDay != mLoadedFirstJulianDay;
+                ArrayList<Event> oldEvents = mEvents;
                 mEvents = events;
                 mLoadedFirstJulianDay = mFirstJulianDay;
                 if (mAllDayEvents == null) {
@@ -2053,18 +2134,14 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
                         mAllDayEvents.add(e);
                     }
                 }
-
-                // New events, new layouts
-                if (mLayouts == null || mLayouts.length < events.size()) {
-                    mLayouts = new StaticLayout[events.size()];
-                } else {
-                    Arrays.fill(mLayouts, null);
-                }
-
-                if (mAllDayLayouts == null || mAllDayLayouts.length < mAllDayEvents.size()) {
-                    mAllDayLayouts = new StaticLayout[events.size()];
-                } else {
-                    Arrays.fill(mAllDayLayouts, null);
+                mEventStore.set(events);
+                mEventDayIndex.build(mEventStore, mFirstJulianDay, mNumDays);
+                mEventsGeneration++;
+                recycleEvents(oldEvents);
+                if (DEBUG) {
+                    Log.d(TAG, "Reload: " + events.size() + " events, "
+                            + (Event.getAllocatedCount() - allocatedBefore) + " allocated, "
+                            + (Event.getReusedCount() - reusedBefore) + " reused");
                 }
 
                 computeEventRelations();
@@ -2178,6 +2255,19 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
             remeasure(getWidth(), getHeight());
             mRemeasure = false;
         }
+        // During a horizontal swipe and the switchViews() animation, slide
+        // snapshots of the pages instead of drawing them, see drawSwipe()
+        if (!mDrawingSnapshot) {
+            if ((mTouchMode & TOUCH_MODE_HSCROLL) != 0 && drawSwipe(canvas)) {
+                return;
+            }
+            // Sliding in or out in switchViews()
+            Animation animation = getAnimation();
+            if (animation != null && !animation.hasEnded() && updateSnapshot()) {
+                canvas.drawBitmap(mSnapshot, 0, 0, null);
+                return;
+            }
+        }
         canvas.save();
 
         float yTranslate = -mViewStartY + DAY_HEADER_HEIGHT + mAlldayHeight;
@@ -2249,6 +2339,91 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
             }
         }
         canvas.restore();
+        if (PROFILE_DRAW) {
+            Log.d(TAG, "onDraw " + sLayoutCache.takeFrameStats());
+        }
+    }
+
+    /**
+     * Draws a frame of a horizontal swipe from the snapshots of this page and
+     * the next one, in place of drawing both. The snapshots are only redrawn
+     * when what they show changed, in practice when the swipe starts and
+     * when the events of the next page come in.
+     *
+     * @return false if either page can't be snapshot yet
+     */
+    private boolean drawSwipe(Canvas canvas) {
+        long start = PROFILE_DRAW ? System.nanoTime() : 0;
+        DayView nextView = (DayView) mViewSwitcher.getNextView();
+        if (!updateSnapshot() || !nextView.updateSnapshot()) {
+            return false;
+        }
+        float xTranslate = mViewStartX > 0 ? mViewWidth : -mViewWidth;
+        canvas.drawBitmap(mSnapshot, -mViewStartX, 0, null);
+        canvas.drawBitmap(nextView.mSnapshot, xTranslate - mViewStartX, 0, null);
+        if (PROFILE_DRAW) {
+            Log.d(TAG, "drawSwipe: " + mNumDays + " days, " + mEvents.size() + " + "
+                    + nextView.mEvents.size() + " events, "
+                    + (System.nanoTime() - start) / 1000 + "us");
+        }
+        return true;
+    }
+
+    /**
+     * Brings the snapshot of this page up to date, drawing the page at rest
+     * into it if anything it shows changed since it was taken.
+     *
+     * @return false if the view has no size yet
+     */
+    @SuppressLint("WrongCall")
+    private boolean updateSnapshot() {
+        if (mViewWidth <= 0 || mViewHeight <= 0) {
+            return false;
+        }
+        if (mSnapshot == null || mSnapshot.getWidth() != mViewWidth
+                || mSnapshot.getHeight() != mViewHeight) {
+            mSnapshot = Bitmap.createBitmap(mViewWidth, mViewHeight, Bitmap.Config.ARGB_8888);
+            mSnapshotValid = false;
+        }
+        int minute = mCurrentTime.hour * 60 + mCurrentTime.minute;
+        if (mSnapshotValid && mSnapshotFirstJulianDay == mFirstJulianDay
+                && mSnapshotEventsGeneration == mEventsGeneration
+                && mSnapshotEventsAlpha == mEventsAlpha && mSnapshotViewStartY == mViewStartY
+                && mSnapshotCellHeight == mCellHeight && mSnapshotSelectionDay == mSelectionDay
+                && mSnapshotMinute == minute) {
+            return true;
+        }
+
+        long start = PROFILE_DRAW ? System.nanoTime() : 0;
+        Canvas canvas = mSnapshotCanvas;
+        mSnapshot.eraseColor(0);
+        canvas.setBitmap(mSnapshot);
+        // Draw the page as if it weren't being dragged
+        int touchMode = mTouchMode;
+        int viewStartX = mViewStartX;
+        mTouchMode = TOUCH_MODE_INITIAL_STATE;
+        mViewStartX = 0;
+        mDrawingSnapshot = true;
+        onDraw(canvas);
+        mDrawingSnapshot = false;
+        mTouchMode = touchMode;
+        mViewStartX = viewStartX;
+        canvas.setBitmap(null);
+
+        // After onDraw(), which may have remeasured
+        mSnapshotFirstJulianDay = mFirstJulianDay;
+        mSnapshotEventsGeneration = mEventsGeneration;
+        mSnapshotEventsAlpha = mEventsAlpha;
+        mSnapshotViewStartY = mViewStartY;
+        mSnapshotCellHeight = mCellHeight;
+        mSnapshotSelectionDay = mSelectionDay;
+        mSnapshotMinute = minute;
+        mSnapshotValid = true;
+        if (PROFILE_DRAW) {
+            Log.d(TAG, "updateSnapshot: " + mEvents.size() + " events, "
+                    + (System.nanoTime() - start) / 1000 + "us");
+        }
+        return true;
     }
 
     private void drawAfterScroll(Canvas canvas) {
@@ -2458,22 +2633,23 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
     private void doDraw(Canvas canvas) {
         Paint p = mPaint;
         Rect r = mRect;
+        long drawStart = PROFILE_DRAW ? System.nanoTime() : 0;
 
-        if (mFutureBgColor != 0) {
-            drawBgColors(r, canvas, p);
+        boolean tiled = USE_TILES && drawTiles(canvas);
+        if (!tiled) {
+            drawBackground(r, canvas, p, mViewStartY, mViewStartY + mViewHeight);
         }
-        drawGridBackground(r, canvas, p);
-        drawHours(r, canvas, p);
 
         // Draw each day
+        final int viewEndY = mViewStartY + mViewHeight - DAY_HEADER_HEIGHT - mAlldayHeight;
         int cell = mFirstJulianDay;
         p.setAntiAlias(false);
         int alpha = p.getAlpha();
         p.setAlpha(mEventsAlpha);
         for (int day = 0; day < mNumDays; day++, cell++) {
-            // TODO Wow, this needs cleanup. drawEvents loop through all the
-            // events on every call.
-            drawEvents(cell, day, HOUR_GAP, canvas, p);
+            if (!tiled) {
+                drawEvents(cell, day, HOUR_GAP, mViewStartY, viewEndY, canvas, p);
+            }
             // If this is today
             if (cell == mTodayJulianDay) {
                 int lineY = mCurrentTime.hour * (mCellHeight + HOUR_GAP)
@@ -2489,6 +2665,122 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         p.setAlpha(alpha);
 
         drawSelectedRect(r, canvas, p);
+
+        if (PROFILE_DRAW) {
+            Log.d(TAG, "doDraw: " + mEvents.size() + " events, " + mNumDays + " days, "
+                    + (System.nanoTime() - drawStart) / 1000 + "us"
+                    + (tiled ? ", " + mTileCache.takeFrameStats() : ""));
+        }
+    }
+
+    /**
+     * Draws the background colors, the grid and the hour labels between
+     * visibleTop and visibleBottom.
+     */
+    private void drawBackground(Rect r, Canvas canvas, Paint p, int visibleTop,
+            int visibleBottom) {
+        if (!drawGridLayer(r, canvas, p, visibleTop, visibleBottom)) {
+            if (mFutureBgColor != 0) {
+                drawBgColors(r, canvas, p);
+            }
+            drawGridBackground(r, canvas, p);
+        }
+        drawHours(r, canvas, p, visibleTop, visibleBottom);
+    }
+
+    /**
+     * Draws the background and the timed events from tiles of TILE_HOURS
+     * hours, drawing only the tiles on screen that are missing or stale. The
+     * current time line and the selected hour are left to be drawn on top.
+     *
+     * Tiles lay the events out against the whole day, so that events line up
+     * across tiles. Unlike drawEvents() on the view, the text of an event
+     * that starts above the screen doesn't follow the top of the screen.
+     *
+     * @return false if the frame has to be drawn directly instead
+     */
+    private boolean drawTiles(Canvas canvas) {
+        // Frames that collect the selected events, fade the events in or
+        // change the cell height on every frame are cheaper to draw directly
+        if (mViewWidth <= 0 || mComputeSelectedEvents
+                || mEventsAlpha != 255 || mStartingSpanY != 0) {
+            return false;
+        }
+        final int deltaY = mCellHeight + HOUR_GAP;
+        final int tileHeight = TILE_HOURS * deltaY;
+        final int dayHeight = HOUR_GAP + 24 * deltaY;
+        mTileCache.setLayout(mEventsGeneration, mViewWidth, mHoursWidth, mCellHeight, mNumDays,
+                mFirstJulianDay, mTodayJulianDay);
+
+        int firstTile = Math.max(mViewStartY / tileHeight, 0);
+        int lastTile = Math.min((mViewStartY + mViewHeight) / tileHeight,
+                (dayHeight - 1) / tileHeight);
+        mTileCache.setMaxBytes(Math.max(TILE_CACHE_BYTES,
+                (lastTile - firstTile + 1) * mViewWidth * tileHeight * 4));
+
+        int todayIndex = mTodayJulianDay - mFirstJulianDay;
+        int lineY = -1;
+        if (mFutureBgColor != 0 && todayIndex >= 0 && todayIndex < mNumDays) {
+            lineY = mCurrentTime.hour * deltaY + ((mCurrentTime.minute * mCellHeight) / 60) + 1;
+        }
+        Event pressed = null;
+        if (mClickedEvent != null && (mSelectionMode == SELECTION_PRESSED
+                || mSelectionMode == SELECTION_SELECTED)) {
+            pressed = mSelectedEvent;
+        }
+
+        for (int i = firstTile; i <= lastTile; i++) {
+            int top = i * tileHeight;
+            int bottom = Math.min(top + tileHeight, dayHeight);
+            DayTileCache.Tile tile = mTileCache.get(i, mViewWidth, bottom - top);
+            Event tileClicked = eventInRange(mClickedEvent, top, bottom);
+            Event tilePressed = eventInRange(pressed, top, bottom);
+            int tileLineY = lineY < 0 ? -1 : Math.max(top, Math.min(lineY, bottom));
+            if (!tile.isValid(tileClicked, tilePressed, tileLineY)) {
+                renderTile(tile, top, bottom, dayHeight);
+                tile.setValid(tileClicked, tilePressed, tileLineY);
+            }
+            canvas.drawBitmap(tile.bitmap, 0, top, null);
+        }
+        return true;
+    }
+
+    private static Event eventInRange(Event event, int top, int bottom) {
+        if (event == null || event.drawAsAllday() || event.top >= bottom
+                || event.bottom <= top) {
+            return null;
+        }
+        return event;
+    }
+
+    private void renderTile(DayTileCache.Tile tile, int top, int bottom, int dayHeight) {
+        long start = PROFILE_DRAW ? System.nanoTime() : 0;
+        Paint p = mPaint;
+        Rect r = mRect;
+        Canvas canvas = mTileCanvas;
+        tile.bitmap.eraseColor(0);
+        canvas.setBitmap(tile.bitmap);
+        canvas.save();
+        canvas.translate(0, -top);
+        canvas.clipRect(0, top, mViewWidth, bottom);
+
+        drawBackground(r, canvas, p, top, bottom);
+        int cell = mFirstJulianDay;
+        p.setAntiAlias(false);
+        int alpha = p.getAlpha();
+        p.setAlpha(mEventsAlpha);
+        for (int day = 0; day < mNumDays; day++, cell++) {
+            // Only the events on the tile, laid out against the whole day
+            drawEvents(cell, day, HOUR_GAP, 0, dayHeight, top, bottom, canvas, p);
+        }
+        p.setAntiAlias(true);
+        p.setAlpha(alpha);
+
+        canvas.restore();
+        canvas.setBitmap(null);
+        if (PROFILE_DRAW) {
+            mTileCache.rendered(System.nanoTime() - start);
+        }
     }
 
     private void drawSelectedRect(Rect r, Canvas canvas, Paint p) {
@@ -2535,15 +2827,19 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         }
     }
 
-    private void drawHours(Rect r, Canvas canvas, Paint p) {
+    private void drawHours(Rect r, Canvas canvas, Paint p, int visibleTop, int visibleBottom) {
         setupHourTextPaint(p);
 
-        int y = HOUR_GAP + mHoursTextHeight + HOURS_TOP_MARGIN;
+        // Only the labels of the hours on screen
+        final int deltaY = mCellHeight + HOUR_GAP;
+        int firstHour = Math.max(visibleTop / deltaY, 0);
+        int lastHour = Math.min(visibleBottom / deltaY, 23);
+        int y = HOUR_GAP + mHoursTextHeight + HOURS_TOP_MARGIN + firstHour * deltaY;
 
-        for (int i = 0; i < 24; i++) {
+        for (int i = firstHour; i <= lastHour; i++) {
             String time = mHourStrs[i];
             canvas.drawText(time, HOURS_LEFT_MARGIN, y, p);
-            y += mCellHeight + HOUR_GAP;
+            y += deltaY;
         }
     }
 
@@ -2664,32 +2960,8 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         canvas.drawRect(r, p);
 
         // Draw background for grid area
-        if (mNumDays == 1 && todayIndex == 0) {
-            // Draw a white background for the time later than current time
-            int lineY = mCurrentTime.hour * (mCellHeight + HOUR_GAP)
-                    + ((mCurrentTime.minute * mCellHeight) / 60) + 1;
-            if (lineY < mViewStartY + mViewHeight) {
-                lineY = Math.max(lineY, mViewStartY);
-                r.left = mHoursWidth;
-                r.right = mViewWidth;
-                r.top = lineY;
-                r.bottom = mViewStartY + mViewHeight;
-                p.setColor(mFutureBgColor);
-                canvas.drawRect(r, p);
-            }
-        } else if (todayIndex >= 0 && todayIndex < mNumDays) {
-            // Draw today with a white background for the time later than current time
-            int lineY = mCurrentTime.hour * (mCellHeight + HOUR_GAP)
-                    + ((mCurrentTime.minute * mCellHeight) / 60) + 1;
-            if (lineY < mViewStartY + mViewHeight) {
-                lineY = Math.max(lineY, mViewStartY);
-                r.left = computeDayLeftPosition(todayIndex) + 1;
-                r.right = computeDayLeftPosition(todayIndex + 1);
-                r.top = lineY;
-                r.bottom = mViewStartY + mViewHeight;
-                p.setColor(mFutureBgColor);
-                canvas.drawRect(r, p);
-            }
+        if (todayIndex >= 0 && todayIndex < mNumDays) {
+            drawTodayFutureBg(r, canvas, p, todayIndex, mViewStartY, mViewStartY + mViewHeight);
 
             // Paint Tomorrow and later days with future color
             if (todayIndex + 1 < mNumDays) {
@@ -2712,6 +2984,120 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         p.setAntiAlias(true);
     }
 
+    /**
+     * Draws today with a white background for the time later than current
+     * time. This moves with the clock, so it is never part of the grid layer.
+     */
+    private void drawTodayFutureBg(Rect r, Canvas canvas, Paint p, int todayIndex,
+            int visibleTop, int visibleBottom) {
+        int lineY = mCurrentTime.hour * (mCellHeight + HOUR_GAP)
+                + ((mCurrentTime.minute * mCellHeight) / 60) + 1;
+        if (lineY < visibleBottom) {
+            lineY = Math.max(lineY, visibleTop);
+            if (mNumDays == 1) {
+                r.left = mHoursWidth;
+                r.right = mViewWidth;
+            } else {
+                r.left = computeDayLeftPosition(todayIndex) + 1;
+                r.right = computeDayLeftPosition(todayIndex + 1);
+            }
+            r.top = lineY;
+            r.bottom = visibleBottom;
+            p.setColor(mFutureBgColor);
+            canvas.drawRect(r, p);
+        }
+    }
+
+    /**
+     * Draws what drawBgColors() and drawGridBackground() would, from a cached
+     * bitmap. The grid repeats every hour, so the bitmap only holds one hour
+     * (the hours background, the future days, the hour line on top and the
+     * day lines) and is drawn once for each hour on screen. A whole day would
+     * take 24 times the memory. The part of today after the current time is
+     * drawn first and shows through the bitmap, which leaves today's column
+     * transparent.
+     *
+     * @return false if there is nothing to draw the grid into yet
+     */
+    private boolean drawGridLayer(Rect r, Canvas canvas, Paint p, int visibleTop,
+            int visibleBottom) {
+        final int deltaY = mCellHeight + HOUR_GAP;
+        if (mViewWidth <= 0 || deltaY <= 0) {
+            return false;
+        }
+        int todayIndex = mTodayJulianDay - mFirstJulianDay;
+        // All the layer depends on is which column today is in, if any
+        int todayColumn = todayIndex < 0 ? -1 : Math.min(todayIndex, mNumDays);
+        if (mGridLayer == null || mGridLayer.getWidth() != mViewWidth
+                || mGridLayerCellHeight != mCellHeight || mGridLayerNumDays != mNumDays
+                || mGridLayerHoursWidth != mHoursWidth || mGridLayerToday != todayColumn) {
+            renderGridLayer(todayColumn);
+        }
+
+        if (mFutureBgColor != 0 && todayIndex >= 0 && todayIndex < mNumDays) {
+            p.setStyle(Style.FILL);
+            p.setAntiAlias(false);
+            drawTodayFutureBg(r, canvas, p, todayIndex, visibleTop, visibleBottom);
+            p.setAntiAlias(true);
+        }
+        // The strip of hour 24 only adds the bottom line
+        int firstHour = Math.max(visibleTop / deltaY, 0);
+        int lastHour = Math.min(visibleBottom / deltaY, 24);
+        for (int hour = firstHour; hour <= lastHour; hour++) {
+            canvas.drawBitmap(mGridLayer, 0, hour * deltaY, null);
+        }
+        return true;
+    }
+
+    private void renderGridLayer(int todayColumn) {
+        final int deltaY = mCellHeight + HOUR_GAP;
+        long start = PROFILE_DRAW ? System.nanoTime() : 0;
+        if (mGridLayer == null || mGridLayer.getWidth() != mViewWidth
+                || mGridLayer.getHeight() != deltaY) {
+            if (mGridLayer != null) {
+                mGridLayer.recycle();
+            }
+            mGridLayer = Bitmap.createBitmap(mViewWidth, deltaY, Bitmap.Config.ARGB_8888);
+        } else {
+            mGridLayer.eraseColor(0);
+        }
+        mGridLayerCellHeight = mCellHeight;
+        mGridLayerNumDays = mNumDays;
+        mGridLayerHoursWidth = mHoursWidth;
+        mGridLayerToday = todayColumn;
+
+        Canvas canvas = new Canvas(mGridLayer);
+        Paint p = mGridLayerPaint;
+        p.setStyle(Style.FILL);
+        p.setAntiAlias(false);
+        if (mFutureBgColor != 0) {
+            p.setColor(mBgColor);
+            canvas.drawRect(0, 0, mHoursWidth, deltaY, p);
+
+            // Tomorrow and later days, today itself is left to drawTodayFutureBg()
+            int firstFutureDay = todayColumn < 0 ? 0 : todayColumn + 1;
+            if (firstFutureDay < mNumDays) {
+                p.setColor(mFutureBgColor);
+                canvas.drawRect(computeDayLeftPosition(firstFutureDay) + 1, 0,
+                        computeDayLeftPosition(mNumDays), deltaY, p);
+            }
+        }
+
+        p.setStrokeWidth(GRID_LINE_INNER_WIDTH);
+        p.setColor(mCalendarGridLineInnerHorizontalColor);
+        canvas.drawLine(GRID_LINE_LEFT_MARGIN, 0, computeDayLeftPosition(mNumDays), 0, p);
+        p.setColor(mCalendarGridLineInnerVerticalColor);
+        for (int day = 0; day <= mNumDays; day++) {
+            float x = computeDayLeftPosition(day);
+            canvas.drawLine(x, 0, x, deltaY, p);
+        }
+
+        if (PROFILE_DRAW) {
+            Log.d(TAG, "renderGridLayer: " + mViewWidth + "x" + deltaY + ", "
+                    + (System.nanoTime() - start) / 1000 + "us");
+        }
+    }
+
     Event getSelectedEvent() {
         if (mSelectedEvent == null) {
             // There is no event at the selected hour, so create a new event.
@@ -2809,55 +3195,172 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
     }
 
     /**
-     * Return the layout for a numbered event. Create it if not already existing
+     * Return the layout for an event, from the cache if one was built for the
+     * same text, width and paint before. Layouts are normally premeasured on
+     * the loader thread, they are only built here when the width changed.
      */
-    private StaticLayout getEventLayout(StaticLayout[] layouts, int i, Event event, Paint paint,
-            Rect r) {
-        if (i < 0 || i >= layouts.length) {
-            return null;
+    private StaticLayout getEventLayout(Event event, Paint paint, Rect r) {
+        setEventTextColor(paint, event, mEventTextColor);
+
+        // The width changes with vertical resizing, which re-lays out
+        // events at min height
+        int textHash = EventLayoutCache.textHash(event);
+        StaticLayout layout = sLayoutCache.get(event.id, textHash, r.width(), paint);
+        if (layout == null) {
+            long layoutStart = System.nanoTime();
+            layout = buildEventLayout(event, paint, r.width());
+            sLayoutCache.put(event.id, textHash, r.width(), paint, layout,
+                    System.nanoTime() - layoutStart);
         }
+        layout.getPaint().setAlpha(mEventsAlpha);
+        return layout;
+    }
 
-        StaticLayout layout = layouts[i];
-        // Check if we have already initialized the StaticLayout and that
-        // the width hasn't changed (due to vertical resizing which causes
-        // re-layout of events at min height)
-        if (layout == null || r.width() != layout.getWidth()) {
-            SpannableStringBuilder bob = new SpannableStringBuilder();
-            if (event.title != null) {
-                // MAX - 1 since we add a space
-                bob.append(drawTextSanitizer(event.title.toString(), MAX_EVENT_TEXT_LEN - 1));
-                bob.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), 0, bob.length(), 0);
-                bob.append(' ');
-            }
-            if (event.location != null) {
-                bob.append(drawTextSanitizer(event.location.toString(),
-                        MAX_EVENT_TEXT_LEN - bob.length()));
+    private static void setEventTextColor(Paint paint, Event event, int eventTextColor) {
+        switch (event.selfAttendeeStatus) {
+            case Attendees.ATTENDEE_STATUS_INVITED:
+                paint.setColor(event.color);
+                break;
+            case Attendees.ATTENDEE_STATUS_DECLINED:
+                paint.setColor(eventTextColor);
+                paint.setAlpha(Utils.DECLINED_EVENT_TEXT_ALPHA);
+                break;
+            case Attendees.ATTENDEE_STATUS_NONE: // Your own events
+            case Attendees.ATTENDEE_STATUS_ACCEPTED:
+            case Attendees.ATTENDEE_STATUS_TENTATIVE:
+            default:
+                paint.setColor(eventTextColor);
+                break;
+        }
+    }
+
+    private static StaticLayout buildEventLayout(Event event, Paint paint, int width) {
+        SpannableStringBuilder bob = new SpannableStringBuilder();
+        if (event.title != null) {
+            // MAX - 1 since we add a space
+            bob.append(drawTextSanitizer(event.title.toString(), MAX_EVENT_TEXT_LEN - 1));
+            bob.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), 0, bob.length(), 0);
+            bob.append(' ');
+        }
+        if (event.location != null) {
+            bob.append(drawTextSanitizer(event.location.toString(),
+                    MAX_EVENT_TEXT_LEN - bob.length()));
+        }
+
+        // Leave a one pixel boundary on the left and right of the rectangle for the event
+        return new StaticLayout(bob, 0, bob.length(), new TextPaint(paint), width,
+                Alignment.ALIGN_NORMAL, 1.0f, 0.0f, true, null, width);
+    }
+
+    /**
+     * Builds the text layouts of loaded events on the EventLoader thread, for
+     * the widths drawEvents() and drawAllDayEvents() will ask for. Holds a
+     * copy of everything the widths depend on, taken in remeasure(), so it
+     * never touches the view.
+     */
+    private static class TextPremeasurer implements EventLoader.Premeasurer {
+        private final int mNumDays;
+        // Left edge of each day column, and of the column after the last
+        private final int[] mDayLeft;
+        private final long mMinimumDurationMillis;
+        private final int mEventTextColor;
+        private final TextPaint mPaint;
+
+        TextPremeasurer(DayView view, long minimumDurationMillis) {
+            mNumDays = view.mNumDays;
+            mDayLeft = new int[mNumDays + 1];
+            for (int day = 0; day <= mNumDays; day++) {
+                mDayLeft[day] = view.computeDayLeftPosition(day);
             }
+            mMinimumDurationMillis = minimumDurationMillis;
+            mEventTextColor = view.mEventTextColor;
+            mPaint = new TextPaint(view.mEventTextPaint);
+        }
 
-            switch (event.selfAttendeeStatus) {
-                case Attendees.ATTENDEE_STATUS_INVITED:
-                    paint.setColor(event.color);
-                    break;
-                case Attendees.ATTENDEE_STATUS_DECLINED:
-                    paint.setColor(mEventTextColor);
-                    paint.setAlpha(Utils.DECLINED_EVENT_TEXT_ALPHA);
-                    break;
-                case Attendees.ATTENDEE_STATUS_NONE: // Your own events
-                case Attendees.ATTENDEE_STATUS_ACCEPTED:
-                case Attendees.ATTENDEE_STATUS_TENTATIVE:
-                default:
-                    paint.setColor(mEventTextColor);
-                    break;
+        /**
+         * Returns whether this was built for the view as it is now.
+         */
+        boolean matches(DayView view, long minimumDurationMillis) {
+            if (view.mNumDays != mNumDays || minimumDurationMillis != mMinimumDurationMillis
+                    || view.mEventTextColor != mEventTextColor
+                    || view.mEventTextPaint.getTextSize() != mPaint.getTextSize()
+                    || view.mEventTextPaint.getTypeface() != mPaint.getTypeface()) {
+                return false;
             }
+            for (int day = 0; day <= mNumDays; day++) {
+                if (view.computeDayLeftPosition(day) != mDayLeft[day]) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-            // Leave a one pixel boundary on the left and right of the rectangle for the event
-            layout = new StaticLayout(bob, 0, bob.length(), new TextPaint(paint), r.width(),
-                    Alignment.ALIGN_NORMAL, 1.0f, 0.0f, true, null, r.width());
+        @Override
+        public void premeasure(ArrayList<Event> events, int startDay, int numDays) {
+            if (numDays != mNumDays) {
+                return;
+            }
+            long start = PROFILE_DRAW ? System.nanoTime() : 0;
+            int built = 0;
+            // The columns the events get in remeasure()
+            Event.computePositions(events, mMinimumDurationMillis);
+            int lastDay = startDay + numDays - 1;
+            for (Event event : events) {
+                int first = Math.max(event.startDay, startDay) - startDay;
+                int last = Math.min(event.endDay, lastDay) - startDay;
+                if (first > last) {
+                    continue;
+                }
+                if (event.drawAsAllday()) {
+                    // As in drawAllDayEvents()
+                    built += premeasure(event, textWidth(mDayLeft[first],
+                            mDayLeft[last + 1] - DAY_GAP,
+                            EVENT_ALL_DAY_TEXT_LEFT_MARGIN + EVENT_ALL_DAY_TEXT_RIGHT_MARGIN));
+                    continue;
+                }
+                // As in drawEvents() and EventGeometry.computeEventRect()
+                int maxCols = Math.max(event.getMaxColumns(), 1);
+                for (int day = first; day <= last; day++) {
+                    int left = mDayLeft[day] + 1;
+                    int cellWidth = mDayLeft[day + 1] - left + 1;
+                    float colWidth = (float) (cellWidth - (maxCols + 1) * DAY_GAP) / (float) maxCols;
+                    float eventLeft = left + event.getColumn() * (colWidth + DAY_GAP);
+                    built += premeasure(event, textWidth(eventLeft, eventLeft + colWidth,
+                            EVENT_TEXT_LEFT_MARGIN + EVENT_TEXT_RIGHT_MARGIN));
+                }
+            }
+            if (PROFILE_DRAW) {
+                Log.d(TAG, "Premeasured " + built + " layouts for " + events.size() + " events in "
+                        + (System.nanoTime() - start) / 1000 + "us");
+            }
+        }
 
-            layouts[i] = layout;
+        private int premeasure(Event event, int width) {
+            if (width <= 0) {
+                return 0;
+            }
+            setEventTextColor(mPaint, event, mEventTextColor);
+            int textHash = EventLayoutCache.textHash(event);
+            if (sLayoutCache.contains(event.id, textHash, width, mPaint)) {
+                return 0;
+            }
+            sLayoutCache.putPremeasured(event.id, textHash, width, mPaint,
+                    buildEventLayout(event, mPaint, width));
+            return 1;
+        }
+
+        // The text width drawEventRect() and setupTextRect() give an event
+        // spanning [left, right)
+        private static int textWidth(float left, float right, int textMargins) {
+            int floorHalfStroke = (int) Math.floor(EVENT_RECT_STROKE_WIDTH / 2.0f);
+            int ceilHalfStroke = (int) Math.ceil(EVENT_RECT_STROKE_WIDTH / 2.0f);
+            int width = ((int) right - ceilHalfStroke)
+                    - ((int) left + EVENT_RECT_LEFT_MARGIN + floorHalfStroke);
+            if (width > textMargins) {
+                width -= textMargins;
+            }
+            return width;
         }
-        layout.getPaint().setAlpha(mEventsAlpha);
-        return layout;
     }
 
     private void drawAllDayEvents(int firstDay, int numDays, Canvas canvas, Paint p) {
@@ -2968,7 +3471,7 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
             Rect r = drawEventRect(event, canvas, p, eventTextPaint, (int) event.top,
                     (int) event.bottom);
             setupAllDayTextRect(r);
-            StaticLayout layout = getEventLayout(mAllDayLayouts, i, event, eventTextPaint, r);
+            StaticLayout layout = getEventLayout(event, eventTextPaint, r);
             drawEventText(layout, r, canvas, r.top, r.bottom, true);
 
             // Check if this all-day event intersects the selected day
@@ -3096,7 +3599,19 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         }
     }
 
-    private void drawEvents(int date, int dayIndex, int top, Canvas canvas, Paint p) {
+    private void drawEvents(int date, int dayIndex, int top, int visibleTop, int visibleBottom,
+            Canvas canvas, Paint p) {
+        drawEvents(date, dayIndex, top, visibleTop, visibleBottom, visibleTop, visibleBottom,
+                canvas, p);
+    }
+
+    /**
+     * Draws the timed events of a day that overlap [drawTop, drawBottom].
+     * Their rectangles and text are cut off at visibleTop and visibleBottom,
+     * which may take in more than is drawn.
+     */
+    private void drawEvents(int date, int dayIndex, int top, int visibleTop, int visibleBottom,
+            int drawTop, int drawBottom, Canvas canvas, Paint p) {
         Paint eventTextPaint = mEventTextPaint;
         int left = computeDayLeftPosition(dayIndex) + 1;
         int cellWidth = computeDayLeftPosition(dayIndex + 1) - left + 1;
@@ -3109,41 +3624,49 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         selectionArea.left = left;
         selectionArea.right = selectionArea.left + cellWidth;
 
-        final ArrayList<Event> events = mEvents;
-        int numEvents = events.size();
+        final EventStore store = mEventStore;
         EventGeometry geometry = mEventGeometry;
-
-        final int viewEndY = mViewStartY + mViewHeight - DAY_HEADER_HEIGHT - mAlldayHeight;
+        final int[] positions = mEventDayIndex.getPositions();
+        final int sliceEnd = mEventDayIndex.sliceEnd(date);
 
         int alpha = eventTextPaint.getAlpha();
         eventTextPaint.setAlpha(mEventsAlpha);
-        for (int i = 0; i < numEvents; i++) {
-            Event event = events.get(i);
-            if (!geometry.computeEventRect(date, left, top, cellWidth, event)) {
+        for (int j = mEventDayIndex.sliceStart(date); j < sliceEnd; j++) {
+            int i = positions[j];
+            if (!geometry.computeEventRect(date, left, top, cellWidth, store, i)) {
                 continue;
             }
 
+            // The slice is ordered by start time, so nothing after an event
+            // that starts below the visible area can be visible either.
+            if (store.top[i] > drawBottom) {
+                break;
+            }
+
             // Don't draw it if it is not visible
-            if (event.bottom < mViewStartY || event.top > viewEndY) {
+            if (store.bottom[i] < drawTop) {
                 continue;
             }
 
+            // Only the events that actually get drawn need their Event
+            // object brought up to date
+            Event event = store.syncRect(i);
+
             if (date == mSelectionDay && !mSelectionAllday && mComputeSelectedEvents
                     && geometry.eventIntersectsSelection(event, selectionArea)) {
                 mSelectedEvents.add(event);
             }
 
-            Rect r = drawEventRect(event, canvas, p, eventTextPaint, mViewStartY, viewEndY);
+            Rect r = drawEventRect(event, canvas, p, eventTextPaint, visibleTop, visibleBottom);
             setupTextRect(r);
 
             // Don't draw text if it is not visible
-            if (r.top > viewEndY || r.bottom < mViewStartY) {
+            if (r.top > drawBottom || r.bottom < drawTop) {
                 continue;
             }
-            StaticLayout layout = getEventLayout(mLayouts, i, event, eventTextPaint, r);
+            StaticLayout layout = getEventLayout(event, eventTextPaint, r);
             // TODO: not sure why we are 4 pixels off
-            drawEventText(layout, r, canvas, mViewStartY + 4, mViewStartY + mViewHeight
-                    - DAY_HEADER_HEIGHT - mAlldayHeight, false);
+            drawEventText(layout, r, canvas, visibleTop + 4, visibleBottom, false);
         }
         eventTextPaint.setAlpha(alpha);
 
@@ -3538,12 +4061,12 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         return r;
     }
 
-    private final Pattern drawTextSanitizerFilter = Pattern.compile("[\t\n],");
+    private static final Pattern drawTextSanitizerFilter = Pattern.compile("[\t\n],");
 
     // Sanitize a string before passing it to drawText or else we get little
     // squares. For newlines and tabs before a comma, delete the character.
     // Otherwise, just replace them with a space.
-    private String drawTextSanitizer(String string, int maxEventTextLen) {
+    private static String drawTextSanitizer(String string, int maxEventTextLen) {
         Matcher m = drawTextSanitizerFilter.matcher(string);
         string = m.replaceAll(",");
 
@@ -4007,6 +4530,9 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
                 if (absDistanceX > mScaledPagingTouchSlop * slopFactor) {
                     mTouchMode = TOUCH_MODE_HSCROLL;
                     mViewStartX = distanceX;
+                    // A snapshot left from an earlier swipe may predate
+                    // taps and all day changes it doesn't track
+                    mSnapshotValid = false;
                     initNextView(-mViewStartX);
                 }
             } else {
@@ -4162,6 +4688,7 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         date.normalize(true /* ignore isDst */);
         initView(view);
         view.layout(getLeft(), getTop(), getRight(), getBottom());
+        view.mSnapshotValid = false;
         view.reloadEvents();
         return switchForward;
     }
@@ -4318,6 +4845,8 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
                         recalc();
                         invalidate();
                         mViewStartX = 0;
+                        mSnapshotValid = false;
+                        ((DayView) mViewSwitcher.getNextView()).mSnapshotValid = false;
                     }
                 }
 
@@ -4705,14 +5234,24 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         region.bottom = y + 10;
 
         EventGeometry geometry = mEventGeometry;
+        final int[] positions = mEventDayIndex.getPositions();
+        final int sliceEnd = mEventDayIndex.sliceEnd(date);
 
-        for (int i = 0; i < numEvents; i++) {
-            Event event = events.get(i);
+        final EventStore store = mEventStore;
+
+        for (int j = mEventDayIndex.sliceStart(date); j < sliceEnd; j++) {
+            int i = positions[j];
             // Compute the event rectangle.
-            if (!geometry.computeEventRect(date, left, top, cellWidth, event)) {
+            if (!geometry.computeEventRect(date, left, top, cellWidth, store, i)) {
                 continue;
             }
 
+            // Events further along the slice start even lower
+            if (store.top[i] >= region.bottom) {
+                break;
+            }
+            Event event = store.syncRect(i);
+
             // If the event intersects the selection region, then add it to
             // mSelectedEvents.
             if (geometry.eventIntersectsSelection(event, region)) {
@@ -4865,6 +5404,12 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
     @Override
     protected void onDetachedFromWindow() {
         cleanup();
+        if (mGridLayer != null) {
+            mGridLayer.recycle();
+            mGridLayer = null;
+        }
+        mTileCache.clear();
+        mSnapshot = null;
         super.onDetachedFromWindow();
     }
 
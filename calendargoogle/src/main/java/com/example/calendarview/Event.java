@@ -23,6 +23,7 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Debug;
+import android.os.SystemClock;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Events;
@@ -33,8 +34,9 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicInteger;
 
 // TODO: should Event be Parcelable so it can be passed via Intents?
 public class Event implements Cloneable {
@@ -42,6 +44,21 @@ public class Event implements Cloneable {
     private static final String TAG = "CalEvent";
     private static final boolean PROFILE = false;
 
+    // How often (in rows, minus one) a cancellable cursor read checks
+    // whether it is still wanted
+    private static final int CANCEL_CHECK_MASK = 31;
+
+    /**
+     * Polled while events are being loaded to find out whether they are
+     * still wanted.
+     */
+    /* package */ interface LoadCancellation {
+        boolean isCancelled();
+    }
+
+    // Logs query time and row count for every loadEvents() call
+    private static final boolean PROFILE_QUERY = false;
+
     /**
      * The sort order is:
      * 1) events with an earlier start (begin for normal events, startday for allday)
@@ -54,12 +71,26 @@ public class Event implements Cloneable {
      */
     private static final String SORT_EVENTS_BY =
             "begin ASC, end DESC, title ASC";
-    private static final String SORT_ALLDAY_BY =
-            "startDay ASC, endDay DESC, title ASC";
     private static final String DISPLAY_AS_ALLDAY = "dispAllday";
 
-    private static final String EVENTS_WHERE = DISPLAY_AS_ALLDAY + "=0";
-    private static final String ALLDAY_WHERE = DISPLAY_AS_ALLDAY + "=1";
+    /**
+     * The all day sort order, "startDay ASC, endDay DESC, title ASC". The
+     * all day events come back mixed in with the other events sorted by
+     * SORT_EVENTS_BY, so they are put in this order in memory.
+     */
+    private static final Comparator<Event> ALLDAY_COMPARATOR = new Comparator<Event>() {
+        public int compare(Event lhs, Event rhs) {
+            if (lhs.startDay != rhs.startDay) {
+                return lhs.startDay < rhs.startDay ? -1 : 1;
+            }
+            if (lhs.endDay != rhs.endDay) {
+                return lhs.endDay > rhs.endDay ? -1 : 1;
+            }
+            String lhsTitle = lhs.title == null ? "" : lhs.title.toString();
+            String rhsTitle = rhs.title == null ? "" : rhs.title.toString();
+            return lhsTitle.compareTo(rhsTitle);
+        }
+    };
 
     // The projection to use when querying instances to build a list of events
     public static final String[] EVENT_PROJECTION = new String[] {
@@ -116,6 +147,15 @@ public class Event implements Cloneable {
     private static String mNoTitleString;
     private static int mNoColorColor;
 
+    // Recycled instances handed out by newInstance(). Events are created on
+    // the loader thread and recycled on the UI thread, so guard with itself.
+    private static final int MAX_POOL_SIZE = 2048;
+    private static final ArrayList<Event> sPool = new ArrayList<Event>();
+    // Running totals for newInstance(); compare two snapshots to get the
+    // counts for a single reload.
+    private static long sAllocatedCount;
+    private static long sReusedCount;
+
     public long id;
     public int color;
     public CharSequence title;
@@ -196,7 +236,19 @@ public class Event implements Cloneable {
     }
 
     public static final Event newInstance() {
-        Event e = new Event();
+        Event e = null;
+        synchronized (sPool) {
+            int size = sPool.size();
+            if (size > 0) {
+                e = sPool.remove(size - 1);
+                sReusedCount++;
+            } else {
+                sAllocatedCount++;
+            }
+        }
+        if (e == null) {
+            e = new Event();
+        }
 
         e.id = 0;
         e.title = null;
@@ -212,22 +264,69 @@ public class Event implements Cloneable {
         e.hasAlarm = false;
         e.isRepeating = false;
         e.selfAttendeeStatus = Attendees.ATTENDEE_STATUS_NONE;
+        e.organizer = null;
+        e.guestsCanModify = false;
+        e.mColumn = 0;
+        e.mMaxColumns = 0;
+        e.left = 0;
+        e.right = 0;
+        e.top = 0;
+        e.bottom = 0;
 
         return e;
     }
 
+    /**
+     * Returns an event to the pool used by {@link #newInstance()}. The caller
+     * must not hold on to it afterwards.
+     */
+    public static void recycle(Event e) {
+        // Don't keep strings or other events reachable from the pool
+        e.title = null;
+        e.location = null;
+        e.organizer = null;
+        e.nextUp = null;
+        e.nextDown = null;
+        e.nextLeft = null;
+        e.nextRight = null;
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOL_SIZE) {
+                sPool.add(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events newInstance() had to allocate so far.
+     */
+    public static long getAllocatedCount() {
+        synchronized (sPool) {
+            return sAllocatedCount;
+        }
+    }
+
+    /**
+     * Returns the number of events newInstance() took from the pool so far.
+     */
+    public static long getReusedCount() {
+        synchronized (sPool) {
+            return sReusedCount;
+        }
+    }
+
     /**
      * Loads <i>days</i> days worth of instances starting at <i>startDay</i>.
+     * Gives up part way, leaving events incomplete, once cancellation says
+     * so. It is checked after the query and every few rows of the cursor.
      */
-    public static void loadEvents(Context context, ArrayList<Event> events, int startDay, int days,
-            int requestId, AtomicInteger sequenceNumber) {
+    /* package */ static void loadEvents(Context context, ArrayList<Event> events, int startDay,
+            int days, LoadCancellation cancellation) {
 
         if (PROFILE) {
             Debug.startMethodTracing("loadEvents");
         }
 
         Cursor cEvents = null;
-        Cursor cAllday = null;
 
         events.clear();
         try {
@@ -249,36 +348,48 @@ public class Event implements Cloneable {
 //                    false);
             boolean hideDeclined = false;
 
-            String where = EVENTS_WHERE;
-            String whereAllday = ALLDAY_WHERE;
+            String hideSelection = null;
             if (hideDeclined) {
-                String hideString = " AND " + Instances.SELF_ATTENDEE_STATUS + "!="
+                hideSelection = Instances.SELF_ATTENDEE_STATUS + "!="
                         + Attendees.ATTENDEE_STATUS_DECLINED;
-                where += hideString;
-                whereAllday += hideString;
             }
 
-            cEvents = instancesQuery(context.getContentResolver(), EVENT_PROJECTION, startDay,
-                    endDay, where, null, SORT_EVENTS_BY);
-            cAllday = instancesQuery(context.getContentResolver(), EVENT_PROJECTION, startDay,
-                    endDay, whereAllday, null, SORT_ALLDAY_BY);
+            long queryStart = PROFILE_QUERY ? SystemClock.uptimeMillis() : 0;
+
+            // Fetch both classes of events in one pass so that the
+            // provider only has to expand recurrences for this window
+            // once, then split them up by the computed dispAllday column.
+            cEvents = instancesQuery(context.getContentResolver(), EVENT_PROJECTION,
+                    startDay, endDay, hideSelection, null, SORT_EVENTS_BY);
 
             // Check if we should return early because there are more recent
             // load requests waiting.
-            if (requestId != sequenceNumber.get()) {
+            if (cancellation.isCancelled()) {
                 return;
             }
 
-            buildEventsFromCursor(events, cEvents, context, startDay, endDay);
-            buildEventsFromCursor(events, cAllday, context, startDay, endDay);
+            long buildStart = PROFILE_QUERY ? SystemClock.uptimeMillis() : 0;
+            ArrayList<Event> allDayEvents = new ArrayList<Event>();
+            buildEventsFromCursor(events, allDayEvents, cEvents, context, startDay, endDay,
+                    cancellation);
+
+            // The timed events are already in SORT_EVENTS_BY order, the
+            // all day ones still need to be put in ALLDAY_COMPARATOR order.
+            Collections.sort(allDayEvents, ALLDAY_COMPARATOR);
+            events.addAll(allDayEvents);
+
+            if (PROFILE_QUERY) {
+                long now = SystemClock.uptimeMillis();
+                // The cursor may be null
+                int rows = cEvents != null ? cEvents.getCount() : 0;
+                Log.d(TAG, "query: " + rows + " rows, query " + (buildStart - queryStart)
+                        + "ms, build " + (now - buildStart) + "ms");
+            }
 
         } finally {
             if (cEvents != null) {
                 cEvents.close();
             }
-            if (cAllday != null) {
-                cAllday.close();
-            }
             if (PROFILE) {
                 Debug.stopMethodTracing();
             }
@@ -340,6 +451,18 @@ public class Event implements Cloneable {
      */
     public static void buildEventsFromCursor(
             ArrayList<Event> events, Cursor cEvents, Context context, int startDay, int endDay) {
+        buildEventsFromCursor(events, null, cEvents, context, startDay, endDay, null);
+    }
+
+    /**
+     * Reads an instances cursor built with {@link #EVENT_PROJECTION}. If
+     * allDayEvents is not null, the rows flagged as dispAllday are added to
+     * it instead of to events. Gives up part way through the cursor once
+     * cancellation, if not null, says so.
+     */
+    private static void buildEventsFromCursor(ArrayList<Event> events,
+            ArrayList<Event> allDayEvents, Cursor cEvents, Context context, int startDay,
+            int endDay, LoadCancellation cancellation) {
         if (cEvents == null || events == null) {
             Log.e(TAG, "buildEventsFromCursor: null cursor or null events list!");
             return;
@@ -358,11 +481,21 @@ public class Event implements Cloneable {
         // get sorted in the correct order
         cEvents.moveToPosition(-1);
         while (cEvents.moveToNext()) {
+            // Check every so often whether this load is still wanted
+            if (cancellation != null && (cEvents.getPosition() & CANCEL_CHECK_MASK) == 0
+                    && cancellation.isCancelled()) {
+                return;
+            }
             Event e = generateEventFromCursor(cEvents);
             if (e.startDay > endDay || e.endDay < startDay) {
+                recycle(e);
                 continue;
             }
-            events.add(e);
+            if (allDayEvents != null && cEvents.getInt(PROJECTION_DISPLAY_AS_ALLDAY) != 0) {
+                allDayEvents.add(e);
+            } else {
+                events.add(e);
+            }
         }
     }
 
@@ -371,7 +504,7 @@ public class Event implements Cloneable {
      * @return An event created from the cursor
      */
     private static Event generateEventFromCursor(Cursor cEvents) {
-        Event e = new Event();
+        Event e = newInstance();
         
         e.id = cEvents.getLong(7);
         e.title = cEvents.getString(1);
@@ -505,6 +638,95 @@ public class Event implements Cloneable {
         }
     }
 
+    /**
+     * Same as {@link #computePositions(ArrayList, long)} but works on the
+     * primitive arrays of an {@link EventStore}, without allocating. The
+     * result is also copied back to the store's Event objects.
+     */
+    /* package */ static void computePositions(EventStore store, long minimumDurationMillis) {
+        if (store == null) {
+            return;
+        }
+
+        // Compute the column positions separately for the all-day events
+        doComputePositions(store, minimumDurationMillis, false);
+        doComputePositions(store, minimumDurationMillis, true);
+        for (int i = 0; i < store.size; i++) {
+            store.syncColumns(i);
+        }
+    }
+
+    private static void doComputePositions(EventStore store, long minimumDurationMillis,
+            boolean doAlldayEvents) {
+        final int[] active = store.activeScratch;
+        final int[] group = store.groupScratch;
+        final long[] startMillis = store.startMillis;
+        final long[] endMillis = store.endMillis;
+        final int[] column = store.column;
+        final int[] maxColumns = store.maxColumns;
+        int activeCount = 0;
+        int groupCount = 0;
+
+        if (minimumDurationMillis < 0) {
+            minimumDurationMillis = 0;
+        }
+
+        long colMask = 0;
+        int maxCols = 0;
+        for (int i = 0; i < store.size; i++) {
+            // Process all-day events separately
+            if (store.allDay[i] != doAlldayEvents)
+                continue;
+
+            // Remove the inactive events, keeping the rest in order. See
+            // removeNonAlldayActiveEvents() and removeAlldayActiveEvents().
+            int kept = 0;
+            for (int a = 0; a < activeCount; a++) {
+                int index = active[a];
+                boolean inactive;
+                if (!doAlldayEvents) {
+                    long duration = Math.max(endMillis[index] - startMillis[index],
+                            minimumDurationMillis);
+                    inactive = startMillis[index] + duration <= startMillis[i];
+                } else {
+                    inactive = store.endDay[index] < store.startDay[i];
+                }
+                if (inactive) {
+                    colMask &= ~(1L << column[index]);
+                } else {
+                    active[kept++] = index;
+                }
+            }
+            activeCount = kept;
+
+            // If the active list is empty, then reset the max columns, clear
+            // the column bit mask, and empty the group.
+            if (activeCount == 0) {
+                for (int g = 0; g < groupCount; g++) {
+                    maxColumns[group[g]] = maxCols;
+                }
+                maxCols = 0;
+                colMask = 0;
+                groupCount = 0;
+            }
+
+            // Find the first empty column.  Empty columns are represented by
+            // zero bits in the column mask "colMask".
+            int col = findFirstZeroBit(colMask);
+            if (col == 64)
+                col = 63;
+            colMask |= (1L << col);
+            column[i] = col;
+            active[activeCount++] = i;
+            group[groupCount++] = i;
+            if (maxCols < activeCount)
+                maxCols = activeCount;
+        }
+        for (int g = 0; g < groupCount; g++) {
+            maxColumns[group[g]] = maxCols;
+        }
+    }
+
     private static long removeAlldayActiveEvents(Event event, Iterator<Event> iter, long colMask) {
         // Remove the inactive allday events. An event on the active list
         // becomes inactive when the end day is less than the current event's
@@ -0,0 +1,144 @@
+package com.example.calendarview;
+
+import java.util.Arrays;
+
+/**
+ * Buckets the timed (non all-day) events of a DayView by julian day so that
+ * drawing and hit-testing only visit the events that overlap a given day.
+ *
+ * The buckets are stored as slices of one flat array of positions into the
+ * event list. Within a slice the positions are ordered by the minute the
+ * event starts on that day, which lets callers stop scanning once an event
+ * starts below the visible area. Positions are indices into the
+ * {@link EventStore}, which line up with the event list the store was built
+ * from, so callers can also index per-event caches such as the StaticLayout
+ * array.
+ */
+/* package */ class EventDayIndex {
+    private int mFirstJulianDay;
+    private int mNumDays;
+
+    // mSliceStart[d] .. mSliceStart[d + 1] is the slice of mPositions for
+    // day mFirstJulianDay + d.
+    private int[] mSliceStart = new int[1];
+    private int[] mPositions = new int[0];
+    // Start minute of each entry in mPositions, clipped to the bucket's day.
+    private int[] mStartMinutes = new int[0];
+
+    /**
+     * Rebuilds the index for the events in the store over numDays days starting at
+     * firstJulianDay. All-day events are skipped since they are drawn in the
+     * all-day area and never go through the per-day grid.
+     */
+    void build(EventStore store, int firstJulianDay, int numDays) {
+        mFirstJulianDay = firstJulianDay;
+        mNumDays = numDays;
+        if (mSliceStart.length < numDays + 1) {
+            mSliceStart = new int[numDays + 1];
+        } else {
+            Arrays.fill(mSliceStart, 0);
+        }
+
+        final int lastJulianDay = firstJulianDay + numDays - 1;
+        final int numEvents = store.size;
+        final boolean[] allDay = store.allDay;
+        final int[] startDay = store.startDay;
+        final int[] endDay = store.endDay;
+
+        // First pass: count the number of entries per day
+        int total = 0;
+        for (int i = 0; i < numEvents; i++) {
+            if (allDay[i]) {
+                continue;
+            }
+            int start = Math.max(startDay[i], firstJulianDay);
+            int end = Math.min(endDay[i], lastJulianDay);
+            for (int day = start; day <= end; day++) {
+                mSliceStart[day - firstJulianDay + 1]++;
+                total++;
+            }
+        }
+        for (int d = 0; d < numDays; d++) {
+            mSliceStart[d + 1] += mSliceStart[d];
+        }
+
+        if (mPositions.length < total) {
+            mPositions = new int[total];
+            mStartMinutes = new int[total];
+        }
+
+        // Second pass: fill the slices. Use a cursor per day so we don't have
+        // to clobber mSliceStart while filling.
+        int[] cursor = new int[numDays];
+        for (int i = 0; i < numEvents; i++) {
+            if (allDay[i]) {
+                continue;
+            }
+            int start = Math.max(startDay[i], firstJulianDay);
+            int end = Math.min(endDay[i], lastJulianDay);
+            for (int day = start; day <= end; day++) {
+                int d = day - firstJulianDay;
+                int slot = mSliceStart[d] + cursor[d]++;
+                mPositions[slot] = i;
+                mStartMinutes[slot] = startDay[i] < day ? 0 : store.startTime[i];
+            }
+        }
+
+        // The events come back from the provider sorted by begin time, so
+        // this is normally a single linear pass. Insertion sort keeps the
+        // slices stable, which preserves the draw order of equal starts.
+        for (int d = 0; d < numDays; d++) {
+            sortSlice(mSliceStart[d], mSliceStart[d + 1]);
+        }
+    }
+
+    void clear() {
+        mNumDays = 0;
+    }
+
+    private void sortSlice(int from, int to) {
+        final int[] positions = mPositions;
+        final int[] minutes = mStartMinutes;
+        for (int i = from + 1; i < to; i++) {
+            int position = positions[i];
+            int minute = minutes[i];
+            int j = i - 1;
+            while (j >= from && minutes[j] > minute) {
+                positions[j + 1] = positions[j];
+                minutes[j + 1] = minutes[j];
+                j--;
+            }
+            positions[j + 1] = position;
+            minutes[j + 1] = minute;
+        }
+    }
+
+    /**
+     * Returns the offset into {@link #getPositions()} of the first event on
+     * the given julian day.
+     */
+    int sliceStart(int julianDay) {
+        int d = julianDay - mFirstJulianDay;
+        if (d < 0 || d >= mNumDays) {
+            return 0;
+        }
+        return mSliceStart[d];
+    }
+
+    /**
+     * Returns the offset into {@link #getPositions()} just past the last
+     * event on the given julian day.
+     */
+    int sliceEnd(int julianDay) {
+        int d = julianDay - mFirstJulianDay;
+        if (d < 0 || d >= mNumDays) {
+            return 0;
+        }
+        return mSliceStart[d + 1];
+    }
+
+    int[] getPositions() {
+        return mPositions;
+    }
+
+}
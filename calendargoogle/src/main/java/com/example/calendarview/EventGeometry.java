@@ -43,23 +43,25 @@ public class EventGeometry {
         mMinuteHeight = height / 60.0f;
     }
 
-    // Computes the rectangle coordinates of the given event on the screen.
+    // Computes the rectangle coordinates of entry i of the store on the
+    // screen and stores them in the store's left/top/right/bottom arrays.
     // Returns true if the rectangle is visible on the screen.
-    public boolean computeEventRect(int date, int left, int top, int cellWidth, Event event) {
-        if (event.drawAsAllday()) {
+    public boolean computeEventRect(int date, int left, int top, int cellWidth,
+            EventStore store, int i) {
+        if (store.allDay[i]) {
             return false;
         }
 
         float cellMinuteHeight = mMinuteHeight;
-        int startDay = event.startDay;
-        int endDay = event.endDay;
+        int startDay = store.startDay[i];
+        int endDay = store.endDay[i];
 
         if (startDay > date || endDay < date) {
             return false;
         }
 
-        int startTime = event.startTime;
-        int endTime = event.endTime;
+        int startTime = store.startTime[i];
+        int endTime = store.endTime[i];
 
         // If the event started on a previous day, then show it starting
         // at the beginning of this day.
@@ -73,8 +75,8 @@ public class EventGeometry {
             endTime = DayView.MINUTES_PER_DAY;
         }
 
-        int col = event.getColumn();
-        int maxCols = event.getMaxColumns();
+        int col = store.column[i];
+        int maxCols = store.maxColumns[i];
         int startHour = startTime / 60;
         int endHour = endTime / 60;
 
@@ -84,22 +86,25 @@ public class EventGeometry {
         if (endHour * 60 == endTime)
             endHour -= 1;
 
-        event.top = top;
-        event.top += (int) (startTime * cellMinuteHeight);
-        event.top += startHour * mHourGap;
+        float eventTop = top;
+        eventTop += (int) (startTime * cellMinuteHeight);
+        eventTop += startHour * mHourGap;
 
-        event.bottom = top;
-        event.bottom += (int) (endTime * cellMinuteHeight);
-        event.bottom += endHour * mHourGap - 1;
+        float eventBottom = top;
+        eventBottom += (int) (endTime * cellMinuteHeight);
+        eventBottom += endHour * mHourGap - 1;
 
         // Make the rectangle be at least mMinEventHeight pixels high
-        if (event.bottom < event.top + mMinEventHeight) {
-            event.bottom = event.top + mMinEventHeight;
+        if (eventBottom < eventTop + mMinEventHeight) {
+            eventBottom = eventTop + mMinEventHeight;
         }
 
         float colWidth = (float) (cellWidth - (maxCols + 1) * mCellMargin) / (float) maxCols;
-        event.left = left + col * (colWidth + mCellMargin);
-        event.right = event.left + colWidth;
+        float eventLeft = left + col * (colWidth + mCellMargin);
+        store.left[i] = eventLeft;
+        store.right[i] = eventLeft + colWidth;
+        store.top[i] = eventTop;
+        store.bottom[i] = eventBottom;
         return true;
     }
 
@@ -0,0 +1,153 @@
+package com.example.calendarview;
+
+import android.graphics.Paint;
+import android.text.StaticLayout;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of the StaticLayouts DayView draws event text with. Layouts are
+ * keyed by what they are built from, the event id, a hash of its text, the
+ * width and the color and size of the paint, so they outlive reloads and are
+ * shared by the two DayViews of the ViewSwitcher.
+ *
+ * Layouts can also be built ahead of drawing on the EventLoader thread, see
+ * DayView.TextPremeasurer. The cache counts hits and misses and the time the
+ * UI thread spent building layouts, which {@link #takeFrameStats()} reports
+ * once per frame.
+ */
+/* package */ class EventLayoutCache {
+    private static final int MAX_LAYOUTS = 512;
+
+    private final LinkedHashMap<Key, StaticLayout> mLayouts =
+            new LinkedHashMap<Key, StaticLayout>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, StaticLayout> eldest) {
+            return size() > MAX_LAYOUTS;
+        }
+    };
+    // Reused for lookups so hits don't allocate
+    private final Key mLookup = new Key();
+
+    private long mHits;
+    private long mMisses;
+    private int mFrameHits;
+    private int mFrameMisses;
+    private long mFrameLayoutNanos;
+    private long mPremeasured;
+
+    private static class Key {
+        long id;
+        int textHash;
+        int width;
+        int color;
+        float textSize;
+
+        void set(long id, int textHash, int width, Paint paint) {
+            this.id = id;
+            this.textHash = textHash;
+            this.width = width;
+            this.color = paint.getColor();
+            this.textSize = paint.getTextSize();
+        }
+
+        Key copy() {
+            Key key = new Key();
+            key.id = id;
+            key.textHash = textHash;
+            key.width = width;
+            key.color = color;
+            key.textSize = textSize;
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id == other.id && textHash == other.textHash && width == other.width
+                    && color == other.color && textSize == other.textSize;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (id ^ (id >>> 32));
+            hash = 31 * hash + textHash;
+            hash = 31 * hash + width;
+            hash = 31 * hash + color;
+            return 31 * hash + Float.floatToIntBits(textSize);
+        }
+    }
+
+    /**
+     * Returns the hash of an event's text that layouts are keyed by.
+     */
+    static int textHash(Event event) {
+        int hash = event.title != null ? event.title.toString().hashCode() : 0;
+        return 31 * hash + (event.location != null ? event.location.toString().hashCode() : 0);
+    }
+
+    /**
+     * Returns the cached layout, or null if it has to be built and
+     * {@link #put}.
+     */
+    synchronized StaticLayout get(long id, int textHash, int width, Paint paint) {
+        mLookup.set(id, textHash, width, paint);
+        StaticLayout layout = mLayouts.get(mLookup);
+        if (layout != null) {
+            mHits++;
+            mFrameHits++;
+        } else {
+            mMisses++;
+            mFrameMisses++;
+        }
+        return layout;
+    }
+
+    /**
+     * Adds a layout that took layoutNanos to build.
+     */
+    synchronized void put(long id, int textHash, int width, Paint paint, StaticLayout layout,
+            long layoutNanos) {
+        mLookup.set(id, textHash, width, paint);
+        mLayouts.put(mLookup.copy(), layout);
+        mFrameLayoutNanos += layoutNanos;
+    }
+
+    /**
+     * Returns whether a layout is cached, without counting a lookup.
+     */
+    synchronized boolean contains(long id, int textHash, int width, Paint paint) {
+        mLookup.set(id, textHash, width, paint);
+        return mLayouts.containsKey(mLookup);
+    }
+
+    /**
+     * Adds a layout built ahead of drawing.
+     */
+    synchronized void putPremeasured(long id, int textHash, int width, Paint paint,
+            StaticLayout layout) {
+        mLookup.set(id, textHash, width, paint);
+        mLayouts.put(mLookup.copy(), layout);
+        mPremeasured++;
+    }
+
+    /**
+     * Returns the hit rate and layout time since the last call, and starts
+     * counting the next frame.
+     */
+    synchronized String takeFrameStats() {
+        long lookups = mHits + mMisses;
+        String stats = "layouts: " + mFrameHits + " hits, " + mFrameMisses + " built in "
+                + mFrameLayoutNanos / 1000 + "us, " + mLayouts.size() + " cached, "
+                + mPremeasured + " premeasured, hit rate "
+                + (lookups > 0 ? mHits * 100 / lookups : 0) + "%";
+        mFrameHits = 0;
+        mFrameMisses = 0;
+        mFrameLayoutNanos = 0;
+        return stats;
+    }
+}
@@ -19,37 +19,269 @@ package com.example.calendarview;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Process;
-import android.provider.CalendarContract;
-import android.provider.CalendarContract.EventDays;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class EventLoader {
+    private static final String TAG = "EventLoader";
+    private static final boolean DEBUG = false;
+
+    // The number of loaded day ranges kept around. A week view keeps the
+    // visible week plus the prefetched weeks on either side, so this leaves
+    // room for a few pages of back and forth swiping.
+    private static final int MAX_CACHED_RANGES = 8;
+
+    // Request types, in priority order. The loader thread always runs the
+    // pending request with the lowest type first.
+    /* package */ static final int TYPE_VISIBLE = 0;
+    /* package */ static final int TYPE_PREFETCH = 1;
+    /* package */ static final int TYPE_EVENT_DAYS = 2;
+    private static final int NUM_TYPES = 3;
+    private static final String[] TYPE_NAMES = {"visible", "prefetch", "eventDays"};
 
     private Context mContext;
     private Handler mHandler = new Handler();
+    private volatile Premeasurer mPremeasurer;
     private AtomicInteger mSequenceNumber = new AtomicInteger();
 
-    private LinkedBlockingQueue<LoadRequest> mLoaderQueue;
+    /**
+     * Work done on the loader thread for every range loaded for the views,
+     * before they get it. Used to measure event text ahead of drawing.
+     */
+    interface Premeasurer {
+        void premeasure(ArrayList<Event> events, int startDay, int numDays);
+    }
+
+    // Loaded events keyed by the julian day the range starts on. Accessed
+    // from both the UI thread and the loader thread so guard with itself.
+    // The cache owns its Event objects: callers always get copies, and
+    // evicted ranges go back to the Event pool.
+    private final LinkedHashMap<Integer, CachedRange> mRangeCache =
+            new LinkedHashMap<Integer, CachedRange>(MAX_CACHED_RANGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, CachedRange> eldest) {
+                    if (size() > MAX_CACHED_RANGES) {
+                        recycleEvents(eldest.getValue().events);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    // Bumped every time the cache is invalidated so that loads that were
+    // started against the old data don't repopulate the cache.
+    private int mCacheGeneration;
+
+    private LoadScheduler mScheduler;
     private LoaderThread mLoaderThread;
     private ContentResolver mResolver;
 
-    private static interface LoadRequest {
-        public void processRequest(EventLoader eventLoader);
-        public void skipRequest(EventLoader eventLoader);
+    private static abstract class LoadRequest {
+        final int type;
+        long enqueueTime;
+        private volatile boolean mCancelled;
+
+        LoadRequest(int type) {
+            this.type = type;
+        }
+
+        public abstract void processRequest(EventLoader eventLoader);
+        public abstract void skipRequest(EventLoader eventLoader);
+
+        /**
+         * Asks a running request to stop at its next convenient point.
+         */
+        void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * Polled by the request while it iterates its cursor.
+         */
+        boolean isCancelled(EventLoader eventLoader) {
+            return mCancelled;
+        }
+
+        /**
+         * Returns {@link #isCancelled} in the form Event.loadEvents() polls.
+         */
+        Event.LoadCancellation cancellation(final EventLoader eventLoader) {
+            return new Event.LoadCancellation() {
+                @Override
+                public boolean isCancelled() {
+                    return LoadRequest.this.isCancelled(eventLoader);
+                }
+            };
+        }
     }
 
-    private static class ShutdownRequest implements LoadRequest {
-        public void processRequest(EventLoader eventLoader) {
+    /**
+     * Counters for one request type. All fields are guarded by the
+     * scheduler; callers get a copy from {@link #getStats(int)}.
+     */
+    /* package */ static class LoadStats {
+        public int pending;
+        public long submitted;
+        public long skipped;
+        public long cancelled;
+        public long completed;
+        public long totalWaitMillis;
+        public long maxWaitMillis;
+        public long totalRunMillis;
+        public long maxRunMillis;
+
+        LoadStats copy() {
+            LoadStats stats = new LoadStats();
+            stats.pending = pending;
+            stats.submitted = submitted;
+            stats.skipped = skipped;
+            stats.cancelled = cancelled;
+            stats.completed = completed;
+            stats.totalWaitMillis = totalWaitMillis;
+            stats.maxWaitMillis = maxWaitMillis;
+            stats.totalRunMillis = totalRunMillis;
+            stats.maxRunMillis = maxRunMillis;
+            return stats;
         }
 
-        public void skipRequest(EventLoader eventLoader) {
+        @Override
+        public String toString() {
+            long ran = completed + cancelled;
+            return "pending=" + pending + " submitted=" + submitted + " skipped=" + skipped
+                    + " cancelled=" + cancelled + " completed=" + completed
+                    + " avgWait=" + (ran == 0 ? 0 : totalWaitMillis / ran) + "ms"
+                    + " maxWait=" + maxWaitMillis + "ms"
+                    + " avgRun=" + (ran == 0 ? 0 : totalRunMillis / ran) + "ms"
+                    + " maxRun=" + maxRunMillis + "ms";
+        }
+    }
+
+    /**
+     * Holds at most one pending request per type. A newer request of the same
+     * type replaces the pending one (which is skipped) and asks a running one
+     * of that type to cancel itself, so requests of different types no longer
+     * knock each other out.
+     */
+    private static class LoadScheduler {
+        private final LoadRequest[] mPending = new LoadRequest[NUM_TYPES];
+        private final LoadStats[] mStats = new LoadStats[NUM_TYPES];
+        private LoadRequest mRunning;
+
+        LoadScheduler() {
+            for (int i = 0; i < NUM_TYPES; i++) {
+                mStats[i] = new LoadStats();
+            }
+        }
+
+        synchronized void submit(LoadRequest request, EventLoader eventLoader) {
+            supersede(request.type, eventLoader);
+            LoadStats stats = mStats[request.type];
+            request.enqueueTime = SystemClock.uptimeMillis();
+            mPending[request.type] = request;
+            stats.submitted++;
+            stats.pending++;
+            notifyAll();
+        }
+
+        /**
+         * Skips the pending request of the given type and cancels the running
+         * one, as their results are no longer wanted.
+         */
+        synchronized void supersede(int type, EventLoader eventLoader) {
+            LoadRequest old = mPending[type];
+            if (old != null) {
+                mPending[type] = null;
+                old.skipRequest(eventLoader);
+                mStats[type].skipped++;
+                mStats[type].pending--;
+            }
+            if (mRunning != null && mRunning.type == type) {
+                mRunning.cancel();
+            }
+        }
+
+        /**
+         * Blocks until there is a request to run or the given thread has been
+         * shut down, in which case null is returned.
+         */
+        synchronized LoadRequest take(LoaderThread thread) throws InterruptedException {
+            while (!thread.mShutdown) {
+                for (int type = 0; type < NUM_TYPES; type++) {
+                    LoadRequest request = mPending[type];
+                    if (request != null) {
+                        mPending[type] = null;
+                        mRunning = request;
+                        LoadStats stats = mStats[type];
+                        long wait = SystemClock.uptimeMillis() - request.enqueueTime;
+                        stats.pending--;
+                        stats.totalWaitMillis += wait;
+                        stats.maxWaitMillis = Math.max(stats.maxWaitMillis, wait);
+                        return request;
+                    }
+                }
+                wait();
+            }
+            return null;
+        }
+
+        synchronized void finish(LoadRequest request, long runMillis, boolean cancelled) {
+            if (mRunning == request) {
+                mRunning = null;
+            }
+            LoadStats stats = mStats[request.type];
+            if (cancelled) {
+                stats.cancelled++;
+            } else {
+                stats.completed++;
+            }
+            stats.totalRunMillis += runMillis;
+            stats.maxRunMillis = Math.max(stats.maxRunMillis, runMillis);
+            if (DEBUG) {
+                Log.d(TAG, TYPE_NAMES[request.type] + ": " + stats);
+            }
+        }
+
+        /**
+         * Stops the given thread and skips everything that is still queued,
+         * the same as if a newer request had come in.
+         */
+        synchronized void shutdown(LoaderThread thread, EventLoader eventLoader) {
+            thread.mShutdown = true;
+            for (int type = 0; type < NUM_TYPES; type++) {
+                LoadRequest request = mPending[type];
+                if (request != null) {
+                    mPending[type] = null;
+                    request.skipRequest(eventLoader);
+                    mStats[type].skipped++;
+                    mStats[type].pending--;
+                }
+            }
+            if (mRunning != null) {
+                mRunning.cancel();
+            }
+            notifyAll();
+        }
+
+        synchronized LoadStats getStats(int type) {
+            return mStats[type].copy();
+        }
+    }
+
+    private static class CachedRange {
+        final int numDays;
+        final ArrayList<Event> events;
+
+        CachedRange(int numDays, ArrayList<Event> events) {
+            this.numDays = numDays;
+            this.events = events;
         }
     }
 
@@ -59,22 +291,23 @@ public class EventLoader {
      * and filling in the eventDays array.
      *
      */
-    private static class LoadEventDaysRequest implements LoadRequest {
+    private static class LoadEventDaysRequest extends LoadRequest {
         public int startDay;
         public int numDays;
-        public boolean[] eventDays;
+        public BitSet eventDays;
         public Runnable uiCallback;
 
         /**
-         * The projection used by the EventDays query.
+         * The projection used by the event days query.
          */
         private static final String[] PROJECTION = {
-                CalendarContract.EventDays.STARTDAY, CalendarContract.EventDays.ENDDAY
+                CalendarProvider.JULIAN_DAY
         };
 
-        public LoadEventDaysRequest(int startDay, int numDays, boolean[] eventDays,
+        public LoadEventDaysRequest(int startDay, int numDays, BitSet eventDays,
                 final Runnable uiCallback)
         {
+            super(TYPE_EVENT_DAYS);
             this.startDay = startDay;
             this.numDays = numDays;
             this.eventDays = eventDays;
@@ -88,30 +321,29 @@ public class EventLoader {
             ContentResolver cr = eventLoader.mResolver;
 
             // Clear the event days
-            Arrays.fill(eventDays, false);
-
-            //query which days have events
-            Cursor cursor = EventDays.query(cr, startDay, numDays, PROJECTION);
+            eventDays.clear();
+
+            // The provider keeps a row per day that has events, so this is
+            // one range scan whatever the span
+            Uri uri = Uri.withAppendedPath(CalendarProvider.EVENT_DAYS_URI,
+                    startDay + "/" + (startDay + numDays - 1));
+            Cursor cursor = cr.query(uri, PROJECTION, null, null, null);
+            if (cursor == null) {
+                return;
+            }
             try {
-                int startDayColumnIndex = cursor.getColumnIndexOrThrow(EventDays.STARTDAY);
-                int endDayColumnIndex = cursor.getColumnIndexOrThrow(EventDays.ENDDAY);
+                int julianDayColumnIndex = cursor.getColumnIndexOrThrow(CalendarProvider.JULIAN_DAY);
 
-                //Set all the days with events to true
                 while (cursor.moveToNext()) {
-                    int firstDay = cursor.getInt(startDayColumnIndex);
-                    int lastDay = cursor.getInt(endDayColumnIndex);
-                    //we want the entire range the event occurs, but only within the month
-                    int firstIndex = Math.max(firstDay - startDay, 0);
-                    int lastIndex = Math.min(lastDay - startDay, 30);
-
-                    for(int i = firstIndex; i <= lastIndex; i++) {
-                        eventDays[i] = true;
+                    // A newer request for the event days came in, don't
+                    // bother finishing this one.
+                    if (isCancelled(eventLoader)) {
+                        return;
                     }
+                    eventDays.set(cursor.getInt(julianDayColumnIndex) - startDay);
                 }
             } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+                cursor.close();
             }
             handler.post(uiCallback);
         }
@@ -121,7 +353,7 @@ public class EventLoader {
         }
     }
 
-    private static class LoadEventsRequest implements LoadRequest {
+    private static class LoadEventsRequest extends LoadRequest {
 
         public int id;
         public int startDay;
@@ -132,6 +364,7 @@ public class EventLoader {
 
         public LoadEventsRequest(int id, int startDay, int numDays, ArrayList<Event> events,
                 final Runnable successCallback, final Runnable cancelCallback) {
+            super(TYPE_VISIBLE);
             this.id = id;
             this.startDay = startDay;
             this.numDays = numDays;
@@ -141,40 +374,111 @@ public class EventLoader {
         }
 
         public void processRequest(EventLoader eventLoader) {
-            Event.loadEvents(eventLoader.mContext, events, startDay,
-                    numDays, id, eventLoader.mSequenceNumber);
+            int generation = eventLoader.getCacheGeneration();
+            Event.loadEvents(eventLoader.mContext, events, startDay, numDays,
+                    cancellation(eventLoader));
 
             // Check if we are still the most recent request.
-            if (id == eventLoader.mSequenceNumber.get()) {
-                eventLoader.mHandler.post(successCallback);
-            } else {
-                eventLoader.mHandler.post(cancelCallback);
+            if (isCancelled(eventLoader)) {
+                dropEvents(eventLoader);
+                return;
             }
+            eventLoader.premeasure(events, startDay, numDays);
+            ArrayList<Event> copy = new ArrayList<Event>(events.size());
+            copyEvents(events, copy);
+            eventLoader.putCachedRange(generation, startDay, numDays, copy);
+            // The cache can still use the events, but premeasuring takes a
+            // while and the view may have moved on in the meantime.
+            if (isCancelled(eventLoader)) {
+                dropEvents(eventLoader);
+                return;
+            }
+            eventLoader.mHandler.post(successCallback);
+            eventLoader.prefetchAround(id, startDay, numDays);
+        }
+
+        private void dropEvents(EventLoader eventLoader) {
+            // The callbacks never hand a cancelled list to the view
+            recycleEvents(events);
+            eventLoader.mHandler.post(cancelCallback);
         }
 
         public void skipRequest(EventLoader eventLoader) {
             eventLoader.mHandler.post(cancelCallback);
         }
+
+        @Override
+        boolean isCancelled(EventLoader eventLoader) {
+            return super.isCancelled(eventLoader) || id != eventLoader.mSequenceNumber.get();
+        }
+    }
+
+    /**
+     * Loads the ranges just before and just after the visible one into the
+     * cache so that swiping to the previous or next page doesn't have to
+     * wait for the provider. Both sides are handled by a single request
+     * since a newer prefetch replaces a pending one.
+     */
+    private static class PrefetchRequest extends LoadRequest {
+        public int id;
+        public int startDay;
+        public int numDays;
+
+        public PrefetchRequest(int id, int startDay, int numDays) {
+            super(TYPE_PREFETCH);
+            this.id = id;
+            this.startDay = startDay;
+            this.numDays = numDays;
+        }
+
+        public void processRequest(EventLoader eventLoader) {
+            // Next page first since swiping forward is the common case
+            prefetch(eventLoader, startDay + numDays);
+            prefetch(eventLoader, startDay - numDays);
+        }
+
+        private void prefetch(EventLoader eventLoader, int day) {
+            if (isCancelled(eventLoader) || eventLoader.hasCachedRange(day, numDays)) {
+                return;
+            }
+            int generation = eventLoader.getCacheGeneration();
+            ArrayList<Event> events = new ArrayList<Event>();
+            Event.loadEvents(eventLoader.mContext, events, day, numDays,
+                    cancellation(eventLoader));
+            // A newer visible load was requested while we were busy; the
+            // partial result is of no use.
+            if (isCancelled(eventLoader)) {
+                recycleEvents(events);
+                return;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Prefetched " + events.size() + " events for day " + day);
+            }
+            eventLoader.premeasure(events, day, numDays);
+            eventLoader.putCachedRange(generation, day, numDays, events);
+        }
+
+        public void skipRequest(EventLoader eventLoader) {
+        }
+
+        @Override
+        boolean isCancelled(EventLoader eventLoader) {
+            return super.isCancelled(eventLoader) || id != eventLoader.mSequenceNumber.get();
+        }
     }
 
     private static class LoaderThread extends Thread {
-        LinkedBlockingQueue<LoadRequest> mQueue;
+        LoadScheduler mScheduler;
         EventLoader mEventLoader;
+        volatile boolean mShutdown;
 
-        public LoaderThread(LinkedBlockingQueue<LoadRequest> queue, EventLoader eventLoader) {
-            mQueue = queue;
+        public LoaderThread(LoadScheduler scheduler, EventLoader eventLoader) {
+            mScheduler = scheduler;
             mEventLoader = eventLoader;
         }
 
         public void shutdown() {
-            try {
-                mQueue.put(new ShutdownRequest());
-            } catch (InterruptedException ex) {
-                // The put() method fails with InterruptedException if the
-                // queue is full. This should never happen because the queue
-                // has no limit.
-                Log.e("Cal", "LoaderThread.shutdown() interrupted!");
-            }
+            mScheduler.shutdown(this, mEventLoader);
         }
 
         @Override
@@ -182,23 +486,15 @@ public class EventLoader {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
             while (true) {
                 try {
-                    // Wait for the next request
-                    LoadRequest request = mQueue.take();
-
-                    // If there are a bunch of requests already waiting, then
-                    // skip all but the most recent request.
-                    while (!mQueue.isEmpty()) {
-                        // Let the request know that it was skipped
-                        request.skipRequest(mEventLoader);
-
-                        // Skip to the next request
-                        request = mQueue.take();
-                    }
-
-                    if (request instanceof ShutdownRequest) {
+                    // Wait for the most important pending request
+                    LoadRequest request = mScheduler.take(this);
+                    if (request == null) {
                         return;
                     }
+                    long start = SystemClock.uptimeMillis();
                     request.processRequest(mEventLoader);
+                    mScheduler.finish(request, SystemClock.uptimeMillis() - start,
+                            request.isCancelled(mEventLoader));
                 } catch (InterruptedException ex) {
                     Log.e("Cal", "background LoaderThread interrupted!");
                 }
@@ -208,15 +504,88 @@ public class EventLoader {
 
     public EventLoader(Context context) {
         mContext = context;
-        mLoaderQueue = new LinkedBlockingQueue<LoadRequest>();
+        mScheduler = new LoadScheduler();
         mResolver = context.getContentResolver();
     }
 
+    private int getCacheGeneration() {
+        synchronized (mRangeCache) {
+            return mCacheGeneration;
+        }
+    }
+
+    private boolean hasCachedRange(int startDay, int numDays) {
+        synchronized (mRangeCache) {
+            CachedRange range = mRangeCache.get(startDay);
+            return range != null && range.numDays == numDays;
+        }
+    }
+
+    /**
+     * Adds a range to the cache, which takes ownership of the events.
+     */
+    private void putCachedRange(int generation, int startDay, int numDays,
+            ArrayList<Event> events) {
+        synchronized (mRangeCache) {
+            if (generation != mCacheGeneration) {
+                recycleEvents(events);
+                return;
+            }
+            CachedRange old = mRangeCache.put(startDay, new CachedRange(numDays, events));
+            if (old != null) {
+                recycleEvents(old.events);
+            }
+        }
+    }
+
+    private static void copyEvents(ArrayList<Event> src, ArrayList<Event> dest) {
+        int count = src.size();
+        for (int i = 0; i < count; i++) {
+            Event e = Event.newInstance();
+            src.get(i).copyTo(e);
+            dest.add(e);
+        }
+    }
+
+    private static void recycleEvents(ArrayList<Event> events) {
+        int count = events.size();
+        for (int i = 0; i < count; i++) {
+            Event.recycle(events.get(i));
+        }
+        events.clear();
+    }
+
+    private void prefetchAround(int id, int startDay, int numDays) {
+        mScheduler.submit(new PrefetchRequest(id, startDay, numDays), this);
+    }
+
+    /**
+     * Returns a snapshot of the queue depth, wait and run time counters for
+     * the given request type (one of the TYPE_ constants).
+     */
+    /* package */ LoadStats getStats(int type) {
+        return mScheduler.getStats(type);
+    }
+
+    /**
+     * Drops all the cached day ranges. Call this whenever the underlying
+     * events change.
+     */
+    public void invalidateCache() {
+        synchronized (mRangeCache) {
+            for (CachedRange range : mRangeCache.values()) {
+                recycleEvents(range.events);
+            }
+            mRangeCache.clear();
+            mCacheGeneration++;
+        }
+    }
+
     /**
      * Call this from the activity's onResume()
      */
     public void startBackgroundThread() {
-        mLoaderThread = new LoaderThread(mLoaderQueue, this);
+        mLoaderThread = new LoaderThread(mScheduler, this);
         mLoaderThread.start();
     }
 
@@ -227,6 +596,22 @@ public class EventLoader {
         mLoaderThread.shutdown();
     }
 
+    /**
+     * Sets the work to do on the loader thread for each range loaded or
+     * prefetched, replacing the previous one. A loader shared by several
+     * views has one premeasurer, the last one set. May be null.
+     */
+    void setPremeasurer(Premeasurer premeasurer) {
+        mPremeasurer = premeasurer;
+    }
+
+    private void premeasure(ArrayList<Event> events, int startDay, int numDays) {
+        Premeasurer premeasurer = mPremeasurer;
+        if (premeasurer != null) {
+            premeasurer.premeasure(events, startDay, numDays);
+        }
+    }
+
     /**
      * Loads "numDays" days worth of events, starting at start, into events.
      * Posts uiCallback to the {@link Handler} for this view, which will run in the UI thread.
@@ -244,43 +629,44 @@ public class EventLoader {
         // latest one.
         int id = mSequenceNumber.incrementAndGet();
 
+        // Serve the request straight from the cache if this range was
+        // already loaded or prefetched. The callback is still posted so
+        // callers see the same ordering as for a real load. Any visible
+        // load still queued or running is for an older range, drop it.
+        synchronized (mRangeCache) {
+            CachedRange range = mRangeCache.get(startDay);
+            if (range != null && range.numDays == numDays) {
+                mScheduler.supersede(TYPE_VISIBLE, this);
+                events.clear();
+                copyEvents(range.events, events);
+                mHandler.post(successCallback);
+                prefetchAround(id, startDay, numDays);
+                return;
+            }
+        }
+
         // Send the load request to the background thread
         LoadEventsRequest request = new LoadEventsRequest(id, startDay, numDays,
                 events, successCallback, cancelCallback);
-
-        try {
-            mLoaderQueue.put(request);
-        } catch (InterruptedException ex) {
-            // The put() method fails with InterruptedException if the
-            // queue is full. This should never happen because the queue
-            // has no limit.
-            Log.e("Cal", "loadEventsInBackground() interrupted!");
-        }
+        mScheduler.submit(request, this);
     }
 
     /**
      * Sends a request for the days with events to be marked. Loads "numDays"
-     * worth of days, starting at start, and fills in eventDays to express which
-     * days have events.
+     * worth of days, starting at start, and sets the bits of eventDays for the
+     * days that have events. Any span works, a whole year is a single query.
      *
      * @param startDay First day to check for events
      * @param numDays Days following the start day to check
-     * @param eventDay Whether or not an event exists on that day
+     * @param eventDays Bit i is set if there is an event on startDay + i
      * @param uiCallback What to do when done (log data, redraw screen)
      */
-    void loadEventDaysInBackground(int startDay, int numDays, boolean[] eventDays,
+    void loadEventDaysInBackground(int startDay, int numDays, BitSet eventDays,
         final Runnable uiCallback)
     {
         // Send load request to the background thread
         LoadEventDaysRequest request = new LoadEventDaysRequest(startDay, numDays,
                 eventDays, uiCallback);
-        try {
-            mLoaderQueue.put(request);
-        } catch (InterruptedException ex) {
-            // The put() method fails with InterruptedException if the
-            // queue is full. This should never happen because the queue
-            // has no limit.
-            Log.e("Cal", "loadEventDaysInBackground() interrupted!");
-        }
+        mScheduler.submit(request, this);
     }
 }
@@ -0,0 +1,125 @@
+package com.example.calendarview;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Column-oriented copy of the fields the DayView render path reads on every
+ * frame. Column assignment, rectangle computation and visibility culling
+ * walk these primitive arrays instead of chasing one Event object per entry.
+ * The arrays only ever grow, so paging from week to week reuses them.
+ *
+ * Entry i always corresponds to position i of the event list the store was
+ * last {@link #set(ArrayList) set} from; {@link #events} keeps that mapping
+ * for the code that still works with Event objects (selection, popups,
+ * accessibility).
+ */
+/* package */ class EventStore {
+    private static final String TAG = "EventStore";
+    private static final boolean DEBUG = false;
+
+    int size;
+
+    long[] ids = new long[0];
+    int[] startDay = new int[0];
+    int[] endDay = new int[0];
+    int[] startTime = new int[0];
+    int[] endTime = new int[0];
+    long[] startMillis = new long[0];
+    long[] endMillis = new long[0];
+    int[] color = new int[0];
+    boolean[] allDay = new boolean[0];
+    int[] column = new int[0];
+    int[] maxColumns = new int[0];
+    float[] left = new float[0];
+    float[] top = new float[0];
+    float[] right = new float[0];
+    float[] bottom = new float[0];
+    Event[] events = new Event[0];
+
+    // Work arrays for Event.computePositions(EventStore, long)
+    int[] activeScratch = new int[0];
+    int[] groupScratch = new int[0];
+
+    /**
+     * Replaces the contents of the store with the given events.
+     */
+    void set(ArrayList<Event> list) {
+        int count = list.size();
+        ensureCapacity(count);
+
+        for (int i = 0; i < count; i++) {
+            Event e = list.get(i);
+            ids[i] = e.id;
+            startDay[i] = e.startDay;
+            endDay[i] = e.endDay;
+            startTime[i] = e.startTime;
+            endTime[i] = e.endTime;
+            startMillis[i] = e.startMillis;
+            endMillis[i] = e.endMillis;
+            color[i] = e.color;
+            allDay[i] = e.drawAsAllday();
+            column[i] = e.getColumn();
+            maxColumns[i] = e.getMaxColumns();
+            events[i] = e;
+        }
+
+        // Don't hold on to events from the previous load
+        for (int i = count; i < size; i++) {
+            events[i] = null;
+        }
+        size = count;
+    }
+
+    private void ensureCapacity(int count) {
+        if (count <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(count, ids.length * 3 / 2);
+        if (DEBUG) {
+            Log.d(TAG, "Growing from " + ids.length + " to " + capacity);
+        }
+        ids = new long[capacity];
+        startDay = new int[capacity];
+        endDay = new int[capacity];
+        startTime = new int[capacity];
+        endTime = new int[capacity];
+        startMillis = new long[capacity];
+        endMillis = new long[capacity];
+        color = new int[capacity];
+        allDay = new boolean[capacity];
+        column = new int[capacity];
+        maxColumns = new int[capacity];
+        left = new float[capacity];
+        top = new float[capacity];
+        right = new float[capacity];
+        bottom = new float[capacity];
+        events = new Event[capacity];
+        activeScratch = new int[capacity];
+        groupScratch = new int[capacity];
+        size = 0;
+    }
+
+    /**
+     * Copies the column assignment of entry i back to its Event.
+     */
+    void syncColumns(int i) {
+        Event e = events[i];
+        e.setColumn(column[i]);
+        e.setMaxColumns(maxColumns[i]);
+    }
+
+    /**
+     * Copies the rectangle of entry i back to its Event and returns the
+     * Event, for the code that draws and selects Event objects.
+     */
+    Event syncRect(int i) {
+        Event e = events[i];
+        e.left = left[i];
+        e.top = top[i];
+        e.right = right[i];
+        e.bottom = bottom[i];
+        return e;
+    }
+}
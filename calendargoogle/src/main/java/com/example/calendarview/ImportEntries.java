@@ -1,22 +1,48 @@
 package com.example.calendarview;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Events;
 import android.provider.CalendarContract.Instances;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.format.Time;
+import android.util.Log;
 
-public class ImportEntries extends AsyncTask<Context, Void, Void> {
+public class ImportEntries extends AsyncTask<Context, Integer, Void> {
+	private static final String TAG = "ImportEntries";
+	private static final boolean DEBUG = false;
+	// Rows per chunk handed to the writer, and so per bulkInsert
+	private static final int BATCH_SIZE = 500;
+	// Calendars transformed at the same time
+	private static final int MAX_WORKERS = 4;
+	// Chunks a calendar may have waiting for the writer
+	private static final int MAX_PENDING_CHUNKS = 2;
+	private static final String[] EVENT_PROJECTION = {Events._ID,Events.CALENDAR_ID,Events.TITLE,Events.EVENT_LOCATION,Events.DESCRIPTION,Events.DTSTART,Events.DTEND,
+		Events.RRULE,Events.RDATE,Events.EXDATE,Events.DURATION,Events.EVENT_TIMEZONE};
+	// 64-bit FNV-1a, for the per-event checksums
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
 	
 	Context context;
 
@@ -26,6 +52,16 @@ public class ImportEntries extends AsyncTask<Context, Void, Void> {
 		importEntries();
 		return null;
 	}
+
+	/**
+	 * Reports the number of upstream events processed so far.
+	 */
+	@Override
+	protected void onProgressUpdate(Integer... values) {
+		if (DEBUG) {
+			Log.d(TAG, "Processed " + values[0] + " events");
+		}
+	}
 	
 //	private Long[] checkTimes(long id){
 //		Cursor cur = null;
@@ -60,56 +96,99 @@ public class ImportEntries extends AsyncTask<Context, Void, Void> {
 //		Long[] times = new Long[2];
 //		if(add){
 //			long time = System.currentTimeMillis();
-			String[] eventHolder = {Events._ID,Events.CALENDAR_ID,Events.TITLE,Events.EVENT_LOCATION,Events.DESCRIPTION,Events.DTSTART,Events.DTEND};
-			Cursor c = context.getContentResolver().query(Events.CONTENT_URI,eventHolder,null,null,null);
-			if(c != null && c.moveToFirst()){
-				do{
-					long eventID = c.getLong(0);
-		        	String calID = c.getString(1);
-		            String dbEvent = c.getString(2);
-		            String dblocation = c.getString(3);
-		            String dbdesc = c.getString(4);
-//		            times = checkTimes(eventID);
-		            Cursor e = context.getContentResolver().query(CalendarProvider.CONTENT_URI,new String[] {CalendarProvider.CALENDAR_ID},
-		            		CalendarProvider.EVENT_ID+"=?", new String[] {String.valueOf(eventID)}, null);
-		            if(e == null || !e.moveToFirst()){
-		            	ContentValues values = new ContentValues();
-		    			Calendar cal = Calendar.getInstance();
-		    			TimeZone tz = TimeZone.getDefault();
-		    			cal.setTimeZone(tz);
-		    			long offset2 = tz.getRawOffset();
-		    			long offset3 = (tz.getOffset(c.getLong(5))/1000) % 60;
-		    			long offset = 3600000*4;
-		    			cal.setTimeInMillis(c.getLong(5));
-		    			
-		    			long offset4 = TimeUnit.MILLISECONDS.toSeconds(tz.getOffset(c.getLong(5)));
-		    			
-		    			int hours = cal.get(Calendar.HOUR_OF_DAY);
-		    			int min = cal.get(Calendar.MINUTE);
-		    			int startDay = Time.getJulianDay(c.getLong(5),offset4);
-		    			int endDay = Time.getJulianDay(c.getLong(6), TimeUnit.MILLISECONDS.toSeconds(tz.getOffset(c.getLong(6))));
-		    			int startMin = (cal.get(Calendar.HOUR_OF_DAY)*60)+cal.get(Calendar.MINUTE);
-		    			cal = Calendar.getInstance();
-		    			cal.setTimeInMillis(c.getLong(6));
-		    			int endMin = (cal.get(Calendar.HOUR_OF_DAY)*60)+cal.get(Calendar.MINUTE);
-		    			values.put(CalendarProvider.DESCRIPTION, dbdesc);
-		    			values.put(CalendarProvider.END, c.getLong(6));
-		    			values.put(CalendarProvider.START, c.getLong(5));
-		    			values.put(CalendarProvider.EVENT, dbEvent);
-		    			values.put(CalendarProvider.EVENT_ID, eventID);
-		    			values.put(CalendarProvider.LOCATION, dblocation);
-		    			values.put(CalendarProvider.CALENDAR_ID, calID);
-		    			values.put(CalendarProvider.START_DAY, startDay);
-		    			values.put(CalendarProvider.END_DAY, endDay);
-		    			values.put(CalendarProvider.START_TIME, startMin);
-		    			values.put(CalendarProvider.END_TIME, endMin);
-		            	context.getContentResolver().insert(CalendarProvider.CONTENT_URI, values);
-		            }
-		            e.close();
-				}while(c.moveToNext());
-	    		
+			long begin = DEBUG ? SystemClock.uptimeMillis() : 0;
+			ImportedEvents imported = loadImportedEvents();
+			if(imported == null){
+				// Everything would look new and be imported twice
+				Log.e(TAG, "Failed to read the imported events");
+				return;
+			}
+			ArrayList<ContentProviderOperation> changes = new ArrayList<ContentProviderOperation>();
+			// Rows left over from older imports that stored an event twice
+			for(int i = 0; i < imported.duplicateCount; i++){
+				changes.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+						CalendarProvider.CONTENT_URI, imported.duplicateRowIds[i])).build());
+			}
+			long[] calendarIds = loadCalendarIds();
+			// Without the calendars nothing is read, so nothing may be deleted
+			boolean complete = calendarIds != null;
+			if(calendarIds == null){
+				Log.e(TAG, "Failed to read the calendars");
+				calendarIds = new long[0];
+			}
+			TimeZone tz = TimeZone.getDefault();
+			// The days and minutes depend on the zone, so changing it
+			// changes every checksum
+			long seed = hash(FNV_OFFSET, tz.getID());
+
+			// Each calendar is read and transformed on the pool. This thread
+			// is the only writer and takes the chunks calendar by calendar,
+			// so the write order doesn't depend on how the workers run.
+			int numWorkers = Math.min(Runtime.getRuntime().availableProcessors(), MAX_WORKERS);
+			numWorkers = Math.max(1, Math.min(numWorkers, calendarIds.length));
+			ExecutorService pool = Executors.newFixedThreadPool(numWorkers);
+			ArrayList<BlockingQueue<Chunk>> queues = new ArrayList<BlockingQueue<Chunk>>(calendarIds.length);
+			for(long calendarId : calendarIds){
+				// The bounded queue makes a worker wait once it is
+				// MAX_PENDING_CHUNKS ahead of the writer
+				BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(MAX_PENDING_CHUNKS);
+				queues.add(queue);
+				pool.execute(new ShardTransformer(calendarId, queue, imported, tz, seed));
+			}
+
+			int rows = 0;
+			int inserted = 0;
+			int updated = 0;
+			try{
+				for(BlockingQueue<Chunk> queue : queues){
+					Chunk chunk;
+					do{
+						chunk = queue.take();
+						if(chunk.failed){
+							complete = false;
+							break;
+						}
+						inserted += flush(chunk.inserts);
+						changes.addAll(chunk.updates);
+						updated += chunk.updates.size();
+						rows += chunk.rows;
+						publishProgress(rows);
+					}while(!chunk.last);
+				}
+			}catch(InterruptedException ex){
+				complete = false;
+			}finally{
+				pool.shutdownNow();
+			}
+
+			// Whatever wasn't seen has been deleted from the system calendar.
+			// If a calendar couldn't be read its events weren't seen either,
+			// so skip the deletes this time.
+			int deleted = 0;
+			if(complete){
+				for(int i = 0; i < imported.count; i++){
+					if(!imported.seen[i]){
+						changes.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+								CalendarProvider.CONTENT_URI, imported.rowIds[i])).build());
+						deleted++;
+					}
+				}
+			}
+			if(!changes.isEmpty()){
+				try{
+					context.getContentResolver().applyBatch(CalendarProvider.AUTHORITY, changes);
+				}catch(RemoteException ex){
+					Log.e(TAG, "Failed to apply " + changes.size() + " changes", ex);
+				}catch(OperationApplicationException ex){
+					Log.e(TAG, "Failed to apply " + changes.size() + " changes", ex);
+				}
+			}
+			if(DEBUG){
+				Log.d(TAG, "Synced " + rows + " events from " + calendarIds.length + " calendars on "
+						+ numWorkers + " workers: " + inserted + " inserted, " + updated
+						+ " updated, " + deleted + " deleted, " + imported.duplicateCount
+						+ " duplicates removed in " + (SystemClock.uptimeMillis() - begin) + "ms");
 			}
-			c.close();
 //		}else{
 //			String[] eventHolder = {Events._ID,Events.CALENDAR_ID,Events.TITLE,Events.EVENT_LOCATION,Events.DESCRIPTION,Events.DTSTART,Events.DTEND};
 //			Cursor c = getContentResolver().query(Events.CONTENT_URI,eventHolder,null,null,null);
@@ -173,4 +252,250 @@ public class ImportEntries extends AsyncTask<Context, Void, Void> {
 		
 	}
 
+	/**
+	 * A run of consecutive rows of one calendar, transformed and ready to be
+	 * written.
+	 */
+	private static class Chunk{
+		final ArrayList<ContentValues> inserts = new ArrayList<ContentValues>();
+		final ArrayList<ContentProviderOperation> updates = new ArrayList<ContentProviderOperation>();
+		int rows;
+		// The last chunk of its calendar
+		boolean last;
+		// The calendar couldn't be read, no more chunks follow
+		boolean failed;
+	}
+
+	/**
+	 * Reads the events of one calendar in id order and turns them into
+	 * chunks of inserts and updates for the writer. Marks the events it
+	 * sees in imported, each calendar touching only its own entries.
+	 */
+	private class ShardTransformer implements Runnable{
+		private final long mCalendarId;
+		private final BlockingQueue<Chunk> mQueue;
+		private final ImportedEvents mImported;
+		private final TimeZone mTimeZone;
+		private final long mSeed;
+
+		ShardTransformer(long calendarId, BlockingQueue<Chunk> queue, ImportedEvents imported,
+				TimeZone tz, long seed){
+			mCalendarId = calendarId;
+			mQueue = queue;
+			mImported = imported;
+			mTimeZone = tz;
+			mSeed = seed;
+		}
+
+		@Override
+		public void run(){
+			Cursor c = null;
+			try{
+				c = context.getContentResolver().query(Events.CONTENT_URI, EVENT_PROJECTION,
+						Events.CALENDAR_ID + "=?", new String[] {String.valueOf(mCalendarId)},
+						Events._ID + " ASC");
+				if(c == null){
+					throw new IllegalStateException("No cursor for the events of calendar " + mCalendarId);
+				}
+				Calendar cal = Calendar.getInstance(mTimeZone);
+				Chunk chunk = new Chunk();
+				while(c.moveToNext()){
+					long eventID = c.getLong(0);
+					long checksum = checksum(c, mSeed);
+					int index = Arrays.binarySearch(mImported.eventIds, 0, mImported.count, eventID);
+					if(index < 0){
+						chunk.inserts.add(buildValues(c, cal, mTimeZone, checksum));
+					}else{
+						mImported.seen[index] = true;
+						if(mImported.checksums[index] != checksum){
+							chunk.updates.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+									CalendarProvider.CONTENT_URI, mImported.rowIds[index]))
+									.withValues(buildValues(c, cal, mTimeZone, checksum)).build());
+						}
+					}
+					if(++chunk.rows == BATCH_SIZE){
+						mQueue.put(chunk);
+						chunk = new Chunk();
+					}
+				}
+				chunk.last = true;
+				mQueue.put(chunk);
+			}catch(InterruptedException ex){
+				// The writer has given up
+			}catch(RuntimeException ex){
+				Log.e(TAG, "Failed to read calendar " + mCalendarId, ex);
+				Chunk failed = new Chunk();
+				failed.failed = true;
+				try{
+					mQueue.put(failed);
+				}catch(InterruptedException ignored){
+				}
+			}finally{
+				if(c != null){
+					c.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids of the system calendars in order, or null if they
+	 * couldn't be read.
+	 */
+	private long[] loadCalendarIds(){
+		Cursor c = context.getContentResolver().query(Calendars.CONTENT_URI,
+				new String[] {Calendars._ID}, null, null, Calendars._ID + " ASC");
+		if(c == null){
+			return null;
+		}
+		try{
+			long[] ids = new long[c.getCount()];
+			int i = 0;
+			while(c.moveToNext() && i < ids.length){
+				ids[i++] = c.getLong(0);
+			}
+			return i == ids.length ? ids : Arrays.copyOf(ids, i);
+		}finally{
+			c.close();
+		}
+	}
+
+	/**
+	 * What has been imported so far, sorted by event id.
+	 */
+	private static class ImportedEvents{
+		int count;
+		long[] eventIds;
+		long[] rowIds;
+		long[] checksums;
+		boolean[] seen;
+		int duplicateCount;
+		long[] duplicateRowIds;
+	}
+
+	/**
+	 * Reads the event id, row id and checksum of every imported event with a
+	 * single query. Only the first row of each event id is kept, the row
+	 * ids of any others are returned as duplicates. Returns null if they
+	 * couldn't be read.
+	 */
+	private ImportedEvents loadImportedEvents(){
+		ImportedEvents imported = new ImportedEvents();
+		Cursor e = context.getContentResolver().query(CalendarProvider.CONTENT_URI,
+				new String[] {CalendarProvider.EVENT_ID, CalendarProvider.ID, CalendarProvider.CHECKSUM},
+				null, null, CalendarProvider.EVENT_ID + " ASC, " + CalendarProvider.ID + " ASC");
+		if(e == null){
+			return null;
+		}
+		int size = e.getCount();
+		imported.eventIds = new long[size];
+		imported.rowIds = new long[size];
+		imported.checksums = new long[size];
+		imported.seen = new boolean[size];
+		imported.duplicateRowIds = new long[size];
+		try{
+			while(e.moveToNext()){
+				long eventID = e.getLong(0);
+				if(imported.count > 0 && imported.eventIds[imported.count - 1] == eventID){
+					imported.duplicateRowIds[imported.duplicateCount++] = e.getLong(1);
+					continue;
+				}
+				imported.eventIds[imported.count] = eventID;
+				imported.rowIds[imported.count] = e.getLong(1);
+				// Rows from before checksums were stored have none, so they
+				// never match and get rewritten once
+				imported.checksums[imported.count] = e.isNull(2) ? 0 : e.getLong(2);
+				imported.count++;
+			}
+		}finally{
+			e.close();
+		}
+		return imported;
+	}
+
+	/**
+	 * Hashes the imported columns of the current row, starting from seed.
+	 */
+	private static long checksum(Cursor c, long seed){
+		long hash = hash(seed, c.getString(1));
+		hash = hash(hash, c.getString(2));
+		hash = hash(hash, c.getString(3));
+		hash = hash(hash, c.getString(4));
+		hash = hash(hash, c.getLong(5));
+		hash = hash(hash, c.getLong(6));
+		for(int i = 7; i <= 11; i++){
+			hash = hash(hash, c.getString(i));
+		}
+		// 0 is what rows without a checksum read as
+		return hash == 0 ? 1 : hash;
+	}
+
+	private static long hash(long hash, String value){
+		if(value == null){
+			return (hash ^ 0xff) * FNV_PRIME;
+		}
+		for(int i = 0; i < value.length(); i++){
+			hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+		}
+		// Separator so "ab","c" and "a","bc" differ
+		return (hash ^ 0xfe) * FNV_PRIME;
+	}
+
+	private static long hash(long hash, long value){
+		for(int i = 0; i < 8; i++){
+			hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+			value >>>= 8;
+		}
+		return hash;
+	}
+
+	private static ContentValues buildValues(Cursor c, Calendar cal, TimeZone tz, long checksum){
+		long start = c.getLong(5);
+		long end = c.getLong(6);
+		String duration = c.getString(10);
+		if(c.isNull(6) && !TextUtils.isEmpty(duration)){
+			// Recurring events have a duration instead of an end
+			try{
+				end = start + RecurrenceExpander.parseDuration(duration);
+			}catch(RuntimeException ex){
+				end = start;
+			}
+		}
+		ContentValues values = new ContentValues();
+		cal.setTimeInMillis(start);
+		int startMin = (cal.get(Calendar.HOUR_OF_DAY)*60)+cal.get(Calendar.MINUTE);
+		cal.setTimeInMillis(end);
+		int endMin = (cal.get(Calendar.HOUR_OF_DAY)*60)+cal.get(Calendar.MINUTE);
+		int startDay = Time.getJulianDay(start, TimeUnit.MILLISECONDS.toSeconds(tz.getOffset(start)));
+		int endDay = Time.getJulianDay(end, TimeUnit.MILLISECONDS.toSeconds(tz.getOffset(end)));
+		values.put(CalendarProvider.DESCRIPTION, c.getString(4));
+		values.put(CalendarProvider.END, end);
+		values.put(CalendarProvider.START, start);
+		values.put(CalendarProvider.EVENT, c.getString(2));
+		values.put(CalendarProvider.EVENT_ID, c.getLong(0));
+		values.put(CalendarProvider.LOCATION, c.getString(3));
+		values.put(CalendarProvider.CALENDAR_ID, c.getString(1));
+		values.put(CalendarProvider.START_DAY, startDay);
+		values.put(CalendarProvider.END_DAY, endDay);
+		values.put(CalendarProvider.START_TIME, startMin);
+		values.put(CalendarProvider.END_TIME, endMin);
+		values.put(CalendarProvider.CHECKSUM, checksum);
+		values.put(CalendarProvider.RRULE, c.getString(7));
+		values.put(CalendarProvider.RDATE, c.getString(8));
+		values.put(CalendarProvider.EXDATE, c.getString(9));
+		values.put(CalendarProvider.DURATION, duration);
+		values.put(CalendarProvider.TIMEZONE, c.getString(11));
+		return values;
+	}
+
+	private int flush(ArrayList<ContentValues> batch){
+		if(batch.isEmpty()){
+			return 0;
+		}
+		int count = context.getContentResolver().bulkInsert(CalendarProvider.CONTENT_URI,
+				batch.toArray(new ContentValues[batch.size()]));
+		batch.clear();
+		return count;
+	}
+
 }
@@ -18,8 +18,10 @@ package com.example.calendarview;
 
 import android.content.Context;
 import android.content.res.Configuration;
+import android.os.AsyncTask;
 import android.text.format.Time;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
@@ -50,8 +52,15 @@ public class MonthByWeekAdapter extends SimpleWeeksAdapter {
     protected int mOrientation = Configuration.ORIENTATION_LANDSCAPE;
     private final boolean mShowAgendaWithMonth;
 
-    protected ArrayList<ArrayList<Event>> mEventDayList = new ArrayList<ArrayList<Event>>();
+    protected MonthEventIndex mEventIndex = null;
     protected ArrayList<Event> mEvents = null;
+    // Identifies the most recent partitioning task, older results are dropped
+    private int mPartitionGeneration = 0;
+    // Bumped every time a new set of events is loaded
+    private int mEventsVersion = 0;
+    // The events of each week row, keyed by the first julian day of the row
+    private final SparseArray<ArrayList<Event>> mWeekEvents = new SparseArray<ArrayList<Event>>();
+    private final MonthWeekEventsView.DnaCache mDnaCache = new MonthWeekEventsView.DnaCache();
 
     private boolean mAnimateToday = false;
     private long mAnimateTime = 0;
@@ -116,7 +125,13 @@ public class MonthByWeekAdapter extends SimpleWeeksAdapter {
         notifyDataSetChanged();
     }
 
-    public void setEvents(int firstJulianDay, int numDays, ArrayList<Event> events) {
+    /**
+     * Sets the events for the loaded window. The events are partitioned by
+     * day on a background thread and the views are refreshed once that is
+     * done. The list must not be modified after it is passed in.
+     */
+    public void setEvents(final int firstJulianDay, final int numDays,
+            final ArrayList<Event> events) {
 //        if (mIsMiniMonth) {
 //            if (Log.isLoggable(TAG, Log.ERROR)) {
 //                Log.e(TAG, "Attempted to set events for mini view. Events only supported in full"
@@ -124,51 +139,44 @@ public class MonthByWeekAdapter extends SimpleWeeksAdapter {
 //            }
 //            return;
 //        }
-        mEvents = events;
-        mFirstJulianDay = firstJulianDay;
-        mQueryDays = numDays;
-        // Create a new list, this is necessary since the weeks are referencing
-        // pieces of the old list
-        ArrayList<ArrayList<Event>> eventDayList = new ArrayList<ArrayList<Event>>();
-        for (int i = 0; i < numDays; i++) {
-            eventDayList.add(new ArrayList<Event>());
-        }
-
-        if (events == null || events.size() == 0) {
-            if(Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "No events. Returning early--go schedule something fun.");
+        final int generation = ++mPartitionGeneration;
+        new AsyncTask<Void, Void, MonthEventIndex>() {
+            @Override
+            protected MonthEventIndex doInBackground(Void... params) {
+                return MonthEventIndex.build(firstJulianDay, numDays, events);
             }
-            mEventDayList = eventDayList;
-            refresh();
-            return;
-        }
 
-        // Compute the new set of days with events
-        for (Event event : events) {
-            int startDay = event.startDay - mFirstJulianDay;
-            int endDay = event.endDay - mFirstJulianDay + 1;
-            if (startDay < numDays || endDay >= 0) {
-                if (startDay < 0) {
-                    startDay = 0;
-                }
-                if (startDay > numDays) {
-                    continue;
-                }
-                if (endDay < 0) {
-                    continue;
-                }
-                if (endDay > numDays) {
-                    endDay = numDays;
-                }
-                for (int j = startDay; j < endDay; j++) {
-                    eventDayList.get(j).add(event);
+            @Override
+            protected void onPostExecute(MonthEventIndex index) {
+                if (generation != mPartitionGeneration) {
+                    // A newer set of events came in while we were working
+                    return;
                 }
+                setEventIndex(index);
+            }
+        }.execute();
+    }
+
+    /**
+     * Swaps in an already partitioned set of events. Must be called on the
+     * UI thread.
+     */
+    public void setEventIndex(MonthEventIndex index) {
+        // Drop any partitioning still in flight for an older set of events
+        mPartitionGeneration++;
+        mEventIndex = index;
+        mEvents = index.getEvents();
+        mEventsVersion++;
+        mWeekEvents.clear();
+        mFirstJulianDay = index.getFirstJulianDay();
+        mQueryDays = index.getNumDays();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            if (mEvents.size() == 0) {
+                Log.d(TAG, "No events. Go schedule something fun.");
+            } else {
+                Log.d(TAG, "Processed " + mEvents.size() + " events.");
             }
         }
-        if(Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Processed " + events.size() + " events.");
-        }
-        mEventDayList = eventDayList;
         refresh();
     }
 
@@ -242,7 +250,7 @@ public class MonthByWeekAdapter extends SimpleWeeksAdapter {
     }
 
     private void sendEventsToView(MonthWeekEventsView v) {
-        if (mEventDayList.size() == 0) {
+        if (mEventIndex == null || mEventIndex.getNumDays() == 0) {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "No events loaded, did not pass any events to view.");
             }
@@ -252,7 +260,7 @@ public class MonthByWeekAdapter extends SimpleWeeksAdapter {
         int viewJulianDay = v.getFirstJulianDay();
         int start = viewJulianDay - mFirstJulianDay;
         int end = start + v.mNumDays;
-        if (start < 0 || end > mEventDayList.size()) {
+        if (start < 0 || end > mEventIndex.getNumDays()) {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "Week is outside range of loaded events. viewStart: " + viewJulianDay
                         + " eventsStart: " + mFirstJulianDay);
@@ -260,7 +268,23 @@ public class MonthByWeekAdapter extends SimpleWeeksAdapter {
             v.setEvents(null, null);
             return;
         }
-        v.setEvents(mEventDayList.subList(start, end), mEvents);
+        v.setEvents(mEventIndex, start, getWeekEvents(viewJulianDay, start, end), mEventsVersion,
+                mDnaCache);
+    }
+
+    /**
+     * Returns the events that overlap the week row starting at the given
+     * julian day. start and end are the row's bounds in the event index. The
+     * lists are built on first use and kept until the next set of events is
+     * swapped in, so each row only hands its own events to the dna code.
+     */
+    private ArrayList<Event> getWeekEvents(int viewJulianDay, int start, int end) {
+        ArrayList<Event> weekEvents = mWeekEvents.get(viewJulianDay);
+        if (weekEvents == null) {
+            weekEvents = mEventIndex.buildWeekEvents(start, end);
+            mWeekEvents.put(viewJulianDay, weekEvents);
+        }
+        return weekEvents;
     }
 
     @Override
@@ -270,6 +294,8 @@ public class MonthByWeekAdapter extends SimpleWeeksAdapter {
         mHomeTimeZone = Utils.getTimeZone(mContext, null);
         mOrientation = mContext.getResources().getConfiguration().orientation;
         updateTimeZones();
+        // The week number setting and orientation change the dna layout
+        mDnaCache.clear();
         notifyDataSetChanged();
     }
 
@@ -25,6 +25,7 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Instances;
@@ -53,6 +54,8 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
         CalendarController.EventHandler, LoaderManager.LoaderCallbacks<Cursor>, OnScrollListener,
         OnTouchListener {
     private static final String TAG = "MonthFragment";
+    // Logs how long the UI thread spends handing a load to the adapter
+    private static final boolean PROFILE_LOAD = false;
 
     // Selection and selection args for adding event queries
     private static final String WHERE_CALENDARS_VISIBLE = Calendars.VISIBLE + "=1";
@@ -76,7 +79,7 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
     // changing
     private static final int LOADER_THROTTLE_DELAY = 500;
 
-    private CursorLoader mLoader;
+    private MonthEventsLoader mLoader;
     private Uri mEventUri;
     private final Time mDesiredDay = new Time();
 
@@ -120,6 +123,7 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
                 mEventUri = updateUri();
 
                 mLoader.setUri(mEventUri);
+                mLoader.setLoadedDays(mFirstLoadedJulianDay, mLastLoadedJulianDay);
                 mLoader.startLoading();
                 mLoader.onContentChanged();
                 if (Log.isLoggable(TAG, Log.DEBUG)) {
@@ -133,7 +137,7 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
         @Override
         public void run() {
             if (!mIsDetached) {
-                mLoader = (CursorLoader) getLoaderManager().initLoader(0, null,
+                mLoader = (MonthEventsLoader) getLoaderManager().initLoader(0, null,
                         MonthByWeekFragment.this);
             }
         }
@@ -284,7 +288,7 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
         if (mShowCalendarControls) {
             mListView.postDelayed(mLoadingRunnable, mEventsLoadingDelay);
         } else {
-            mLoader = (CursorLoader) getLoaderManager().initLoader(0, null, this);
+            mLoader = (MonthEventsLoader) getLoaderManager().initLoader(0, null, this);
         }
         mAdapter.setListView(mListView);
     }
@@ -315,18 +319,19 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
     // TODO
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        CursorLoader loader;
+        MonthEventsLoader loader;
         synchronized (mUpdateLoader) {
             mFirstLoadedJulianDay = Time.getJulianDay(mSelectedDay.toMillis(true), mSelectedDay.gmtoff) - (mNumWeeks * 7 / 2);
             mEventUri = updateUri();
             String where = updateWhere();
 
-            loader = new CursorLoader(
+            loader = new MonthEventsLoader(
                     getActivity(), mEventUri, new String[] {CalendarProvider.ID,CalendarProvider.EVENT,CalendarProvider.LOCATION,CalendarProvider.DESCRIPTION,
                     	CalendarProvider.START,CalendarProvider.END,CalendarProvider.CALENDAR_ID,CalendarProvider.EVENT_ID,CalendarProvider.START_DAY,CalendarProvider.END_DAY,
                     	CalendarProvider.START_TIME,CalendarProvider.END_TIME}/*Event.EVENT_PROJECTION*/, /*where*/null,
                     null /* WHERE_CALENDARS_SELECTED_ARGS */, null/*INSTANCES_SORT_ORDER*/);
             loader.setUpdateThrottle(LOADER_THROTTLE_DELAY);
+            loader.setLoadedDays(mFirstLoadedJulianDay, mLastLoadedJulianDay);
         }
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "Returning new loader with uri: " + mEventUri);
@@ -367,10 +372,28 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
                 // result
                 return;
             }
-            ArrayList<Event> events = new ArrayList<Event>();
-            Event.buildEventsFromCursor(events, data, mContext, mFirstLoadedJulianDay, mLastLoadedJulianDay);
-            ((MonthByWeekAdapter) mAdapter).setEvents(mFirstLoadedJulianDay,
-                    mLastLoadedJulianDay - mFirstLoadedJulianDay + 1, events);
+            long start = PROFILE_LOAD ? SystemClock.uptimeMillis() : 0;
+            boolean swapped = false;
+            if (data instanceof MonthEventsLoader.SnapshotCursor) {
+                MonthEventsLoader.SnapshotCursor snapshot = (MonthEventsLoader.SnapshotCursor) data;
+                // The events were built in the background, just swap them in
+                // if they cover the days we expect
+                if (snapshot.firstJulianDay == mFirstLoadedJulianDay
+                        && snapshot.lastJulianDay == mLastLoadedJulianDay) {
+                    ((MonthByWeekAdapter) mAdapter).setEventIndex(snapshot.index);
+                    swapped = true;
+                }
+            }
+            if (!swapped) {
+                ArrayList<Event> events = new ArrayList<Event>();
+                Event.buildEventsFromCursor(events, data, mContext, mFirstLoadedJulianDay, mLastLoadedJulianDay);
+                ((MonthByWeekAdapter) mAdapter).setEvents(mFirstLoadedJulianDay,
+                        mLastLoadedJulianDay - mFirstLoadedJulianDay + 1, events);
+            }
+            if (PROFILE_LOAD) {
+                Log.d(TAG, "onLoadFinished took " + (SystemClock.uptimeMillis() - start)
+                        + "ms on the UI thread, " + (swapped ? "swapped snapshot" : "rebuilt events"));
+            }
         }
     }
 
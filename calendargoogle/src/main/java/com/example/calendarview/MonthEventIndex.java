@@ -0,0 +1,169 @@
+package com.example.calendarview;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Events of the month view's loaded window partitioned by julian day.
+ *
+ * Instead of one ArrayList per day holding a copy of every multi-day event,
+ * the index keeps a single flat array of positions into the event list,
+ * grouped by day, and a dayStart table of offsets into it. The per-day lists
+ * handed to the views are read-only windows over that array. An index is
+ * never modified after {@link #build} returns, so it can be built on a
+ * background thread and handed to the UI thread as is.
+ */
+/* package */ class MonthEventIndex {
+    private final int mFirstJulianDay;
+    private final int mNumDays;
+    private final ArrayList<Event> mEvents;
+    // mDayStart[d] .. mDayStart[d + 1] is the slice of mPositions for day
+    // mFirstJulianDay + d.
+    private final int[] mDayStart;
+    private final int[] mPositions;
+    private final List<List<Event>> mDays;
+
+    private MonthEventIndex(int firstJulianDay, int numDays, ArrayList<Event> events,
+            int[] dayStart, int[] positions) {
+        mFirstJulianDay = firstJulianDay;
+        mNumDays = numDays;
+        mEvents = events;
+        mDayStart = dayStart;
+        mPositions = positions;
+        ArrayList<List<Event>> days = new ArrayList<List<Event>>(numDays);
+        for (int d = 0; d < numDays; d++) {
+            days.add(new DaySlice(d));
+        }
+        mDays = days;
+    }
+
+    /**
+     * Partitions events, which must be sorted by start time, over numDays
+     * days starting at firstJulianDay. The list is kept by the index and must
+     * not be modified afterwards.
+     */
+    static MonthEventIndex build(int firstJulianDay, int numDays, ArrayList<Event> events) {
+        if (events == null) {
+            events = new ArrayList<Event>();
+        }
+        final int lastJulianDay = firstJulianDay + numDays - 1;
+        final int numEvents = events.size();
+        int[] dayStart = new int[numDays + 1];
+
+        // First pass: count the entries per day
+        int total = 0;
+        for (int i = 0; i < numEvents; i++) {
+            Event event = events.get(i);
+            int start = Math.max(event.startDay, firstJulianDay);
+            int end = Math.min(event.endDay, lastJulianDay);
+            for (int day = start; day <= end; day++) {
+                dayStart[day - firstJulianDay + 1]++;
+            }
+            if (end >= start) {
+                total += end - start + 1;
+            }
+        }
+        for (int d = 0; d < numDays; d++) {
+            dayStart[d + 1] += dayStart[d];
+        }
+
+        // Second pass: fill the slices. Events are visited in list order so
+        // every slice stays sorted by start time.
+        int[] positions = new int[total];
+        int[] cursor = new int[numDays];
+        for (int i = 0; i < numEvents; i++) {
+            Event event = events.get(i);
+            int start = Math.max(event.startDay, firstJulianDay);
+            int end = Math.min(event.endDay, lastJulianDay);
+            for (int day = start; day <= end; day++) {
+                int d = day - firstJulianDay;
+                positions[dayStart[d] + cursor[d]++] = i;
+            }
+        }
+        return new MonthEventIndex(firstJulianDay, numDays, events, dayStart, positions);
+    }
+
+    int getFirstJulianDay() {
+        return mFirstJulianDay;
+    }
+
+    int getNumDays() {
+        return mNumDays;
+    }
+
+    ArrayList<Event> getEvents() {
+        return mEvents;
+    }
+
+    /**
+     * Returns the events of the week row covering days start (inclusive) to
+     * end (exclusive) of the index, each event once, in list order. Events
+     * that started before the row come first.
+     */
+    ArrayList<Event> buildWeekEvents(int start, int end) {
+        ArrayList<Event> weekEvents = new ArrayList<Event>();
+        for (int d = start; d < end; d++) {
+            int julianDay = mFirstJulianDay + d;
+            for (int slot = mDayStart[d]; slot < mDayStart[d + 1]; slot++) {
+                Event event = mEvents.get(mPositions[slot]);
+                // Multi-day events are in several slices, only take them
+                // from the first day they show up on in this row
+                if (d == start || event.startDay == julianDay) {
+                    weekEvents.add(event);
+                }
+            }
+        }
+        return weekEvents;
+    }
+
+    /**
+     * The events of one day of the index.
+     */
+    private class DaySlice extends AbstractList<Event> {
+        private final int mDay;
+
+        DaySlice(int day) {
+            mDay = day;
+        }
+
+        @Override
+        public Event get(int location) {
+            return mEvents.get(mPositions[mDayStart[mDay] + location]);
+        }
+
+        @Override
+        public int size() {
+            return mDayStart[mDay + 1] - mDayStart[mDay];
+        }
+    }
+
+    /**
+     * A window of consecutive days of an index. Week rows keep one and
+     * repoint it when they are rebound, so binding a row doesn't allocate.
+     */
+    static class DayRange extends AbstractList<List<Event>> {
+        private List<List<Event>> mDays;
+        private int mOffset;
+        private int mSize;
+
+        void set(MonthEventIndex index, int start, int end) {
+            mDays = index.mDays;
+            mOffset = start;
+            mSize = end - start;
+        }
+
+        @Override
+        public List<Event> get(int location) {
+            if (location < 0 || location >= mSize) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mDays.get(mOffset + location);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.calendarview;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * CursorLoader for the month view that also turns the cursor into Events
+ * and partitions them by day while it is still on the loader's background
+ * thread. The result is delivered as a {@link SnapshotCursor}, so the UI
+ * thread only has to swap the finished {@link MonthEventIndex} into the
+ * adapter.
+ *
+ * The loader watches CalendarProvider itself rather than the cursor, and
+ * only reloads for changes to days it has loaded.
+ */
+/* package */ class MonthEventsLoader extends CursorLoader {
+    private static final String TAG = "MonthEventsLoader";
+    private static final boolean PROFILE = false;
+    private static final boolean DEBUG = false;
+
+    // The julian days the current uri covers. Written on the UI thread along
+    // with the uri and read when a load starts.
+    private volatile int mFirstJulianDay;
+    private volatile int mLastJulianDay;
+
+    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            // No uri before API 16, so every change counts
+            onContentChanged();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (ChangeNotifier.affectsDays(CalendarProvider.CONTENT_CHANGED_URI, uri,
+                    mFirstJulianDay, mLastJulianDay)) {
+                onContentChanged();
+            } else if (DEBUG) {
+                Log.d(TAG, "Skipping reload for " + uri);
+            }
+        }
+    };
+    private boolean mObserving;
+
+    /**
+     * A cursor along with the events built from it. The index covers the
+     * julian days the loader was set to when the load started.
+     */
+    static class SnapshotCursor extends CursorWrapper {
+        final int firstJulianDay;
+        final int lastJulianDay;
+        final MonthEventIndex index;
+
+        SnapshotCursor(Cursor cursor, int firstJulianDay, int lastJulianDay,
+                MonthEventIndex index) {
+            super(cursor);
+            this.firstJulianDay = firstJulianDay;
+            this.lastJulianDay = lastJulianDay;
+            this.index = index;
+        }
+    }
+
+    MonthEventsLoader(Context context, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Sets the range of julian days the events should be built for. Call
+     * this whenever the uri is changed.
+     */
+    void setLoadedDays(int firstJulianDay, int lastJulianDay) {
+        mFirstJulianDay = firstJulianDay;
+        mLastJulianDay = lastJulianDay;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final int firstJulianDay = mFirstJulianDay;
+        final int lastJulianDay = mLastJulianDay;
+        // Queried here instead of in super, which would have the cursor
+        // reload the loader on every change
+        Cursor cursor = getContext().getContentResolver().query(getUri(), getProjection(),
+                getSelection(), getSelectionArgs(), getSortOrder());
+        if (cursor == null) {
+            return null;
+        }
+        // Fill the window here, on the background thread
+        cursor.getCount();
+
+        long start = PROFILE ? SystemClock.uptimeMillis() : 0;
+        ArrayList<Event> events = new ArrayList<Event>();
+        Event.buildEventsFromCursor(events, cursor, getContext(), firstJulianDay, lastJulianDay);
+        MonthEventIndex index = MonthEventIndex.build(firstJulianDay,
+                lastJulianDay - firstJulianDay + 1, events);
+        if (PROFILE) {
+            Log.d(TAG, "Built " + events.size() + " events from " + cursor.getCount()
+                    + " rows in " + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+        return new SnapshotCursor(cursor, firstJulianDay, lastJulianDay, index);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(
+                    CalendarProvider.CONTENT_CHANGED_URI, true, mObserver);
+            mObserving = true;
+        }
+        super.onStartLoading();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+    }
+}
@@ -37,6 +37,7 @@ import android.text.format.DateFormat;
 import android.text.format.DateUtils;
 import android.text.format.Time;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.MotionEvent;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityManager;
@@ -46,14 +47,17 @@ import java.util.Arrays;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class MonthWeekEventsView extends SimpleWeekView {
 
     private static final String TAG = "MonthView";
 
     private static final boolean DEBUG_LAYOUT = false;
+    private static final boolean DEBUG_DNA = false;
 
     public static final String VIEW_PARAMS_ORIENTATION = "orientation";
     public static final String VIEW_PARAMS_ANIMATE_TODAY = "animate_today";
@@ -105,9 +109,19 @@ public class MonthWeekEventsView extends SimpleWeekView {
     protected boolean mHasToday = false;
     protected int mTodayIndex = -1;
     protected int mOrientation = Configuration.ORIENTATION_LANDSCAPE;
-    protected List<ArrayList<Event>> mEvents = null;
+    protected List<? extends List<Event>> mEvents = null;
+    // Reused window over the adapter's event index, see setEvents(MonthEventIndex, ...)
+    private final MonthEventIndex.DayRange mDayRange = new MonthEventIndex.DayRange();
     protected ArrayList<Event> mUnsortedEvents = null;
-    HashMap<Integer, Utils.DNAStrand> mDna = null;
+    SparseArray<Utils.DNAStrand> mDna = null;
+    // What mDna was computed for, so a row rebound to the same week can keep it
+    private int mDnaJulianDay = -1;
+    private int mDnaWidth;
+    private int mDnaHeight;
+    private int mDnaVersion = -1;
+    // Shared strand cache and event set version, set by the adapter
+    private DnaCache mDnaCache;
+    private int mEventsVersion = -1;
     // This is for drawing the outlines around event chips and supports up to 10
     // events being drawn on each day. The code will expand this if necessary.
     protected FloatRef mEventOutlines = new FloatRef(10 * 4 * 4 * 7);
@@ -247,11 +261,106 @@ public class MonthWeekEventsView extends SimpleWeekView {
         super(context);
     }
 
+    /**
+     * Strands computed for recently shown weeks. One cache is shared by all
+     * the rows of an adapter so a row that gets recycled onto a week that was
+     * already laid out doesn't have to rebuild the strands. Entries are only
+     * valid for the width, height and event set version they were built for.
+     */
+    /* package */ static class DnaCache {
+        private static final int MAX_WEEKS = 16;
+
+        private static class CachedWeek {
+            int width;
+            int height;
+            int version;
+            SparseArray<Utils.DNAStrand> strands;
+        }
+
+        private final LinkedHashMap<Integer, CachedWeek> mEntries =
+                new LinkedHashMap<Integer, CachedWeek>(MAX_WEEKS, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, CachedWeek> eldest) {
+                        return size() > MAX_WEEKS;
+                    }
+                };
+        private int mHits;
+        private int mMisses;
+
+        SparseArray<Utils.DNAStrand> get(int firstJulianDay, int width, int height,
+                int version) {
+            CachedWeek entry = mEntries.get(firstJulianDay);
+            if (entry == null || entry.width != width || entry.height != height
+                    || entry.version != version) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+            return entry.strands;
+        }
+
+        void put(int firstJulianDay, int width, int height, int version,
+                SparseArray<Utils.DNAStrand> strands) {
+            CachedWeek entry = new CachedWeek();
+            entry.width = width;
+            entry.height = height;
+            entry.version = version;
+            entry.strands = strands;
+            mEntries.put(firstJulianDay, entry);
+        }
+
+        void clear() {
+            mEntries.clear();
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + mHits + " misses=" + mMisses + " size=" + mEntries.size();
+        }
+    }
+
     // Sets the list of events for this week. Takes a sorted list of arrays
     // divided up by day for generating the large month version and the full
     // arraylist sorted by start time to generate the dna version.
-    public void setEvents(List<ArrayList<Event>> sortedEvents, ArrayList<Event> unsortedEvents) {
+    public void setEvents(List<? extends List<Event>> sortedEvents,
+            ArrayList<Event> unsortedEvents) {
+        setEvents(sortedEvents, unsortedEvents, -1, null);
+    }
+
+    /**
+     * Sets this week's days from the adapter's event index, starting at day
+     * start of the index. The days are a window over the index rather than
+     * copies, so this doesn't allocate.
+     */
+    /* package */ void setEvents(MonthEventIndex index, int start, ArrayList<Event> weekEvents,
+            int version, DnaCache dnaCache) {
+        mDayRange.set(index, start, start + mNumDays);
+        setEvents(mDayRange, weekEvents, version, dnaCache);
+    }
+
+    /**
+     * Like {@link #setEvents(List, ArrayList)}, with unsortedEvents holding
+     * only the events of this week. If this view already has strands for the
+     * same week, size and event set version they are kept, otherwise they are
+     * taken from dnaCache when possible.
+     *
+     * @param version the version of the event set, or -1 if unknown
+     * @param dnaCache a cache shared between rows, may be null
+     */
+    public void setEvents(List<? extends List<Event>> sortedEvents,
+            ArrayList<Event> unsortedEvents, int version, DnaCache dnaCache) {
         setEvents(sortedEvents);
+        mEventsVersion = version;
+        mDnaCache = dnaCache;
+        if (version != -1 && mDna != null && mDnaVersion == version
+                && mDnaJulianDay == mFirstJulianDay && mDnaWidth == mWidth
+                && mDnaHeight == mHeight) {
+            if (DEBUG_DNA) {
+                Log.d(TAG, "Keeping dna for week " + mFirstJulianDay);
+            }
+            mUnsortedEvents = null;
+            return;
+        }
         // The MIN_WEEK_WIDTH is a hack to prevent the view from trying to
         // generate dna bits before its width has been fixed.
         createDna(unsortedEvents);
@@ -263,6 +372,7 @@ public class MonthWeekEventsView extends SimpleWeekView {
      * views width not being set correctly yet).
      */
     public void createDna(ArrayList<Event> unsortedEvents) {
+        mDnaJulianDay = -1;
         if (unsortedEvents == null || mWidth <= MIN_WEEK_WIDTH || getContext() == null) {
             // Stash the list of events for use when this view is ready, or
             // just clear it if a null set has been passed to this view
@@ -288,14 +398,33 @@ public class MonthWeekEventsView extends SimpleWeekView {
 
             }
 
-            int top = DAY_SEPARATOR_INNER_WIDTH + DNA_MARGIN + DNA_ALL_DAY_HEIGHT + 1;
-            int bottom = mHeight - DNA_MARGIN;
-            mDna = Utils.createDNAStrands(mFirstJulianDay, unsortedEvents, top, bottom,
-                    DNA_MIN_SEGMENT_HEIGHT, mDayXs, getContext());
+            mDna = null;
+            // createDNAStrands treats an empty list as an error
+            if (!unsortedEvents.isEmpty()) {
+                if (mDnaCache != null && mEventsVersion != -1) {
+                    mDna = mDnaCache.get(mFirstJulianDay, mWidth, mHeight, mEventsVersion);
+                }
+                if (mDna == null) {
+                    int top = DAY_SEPARATOR_INNER_WIDTH + DNA_MARGIN + DNA_ALL_DAY_HEIGHT + 1;
+                    int bottom = mHeight - DNA_MARGIN;
+                    mDna = Utils.createDNAStrands(mFirstJulianDay, unsortedEvents, top, bottom,
+                            DNA_MIN_SEGMENT_HEIGHT, mDayXs, getContext());
+                    if (mDnaCache != null && mEventsVersion != -1) {
+                        mDnaCache.put(mFirstJulianDay, mWidth, mHeight, mEventsVersion, mDna);
+                    }
+                }
+                if (DEBUG_DNA && mDnaCache != null) {
+                    Log.d(TAG, "Dna for week " + mFirstJulianDay + ", cache " + mDnaCache);
+                }
+            }
+            mDnaJulianDay = mFirstJulianDay;
+            mDnaWidth = mWidth;
+            mDnaHeight = mHeight;
+            mDnaVersion = mEventsVersion;
         }
     }
 
-    public void setEvents(List<ArrayList<Event>> sortedEvents) {
+    public void setEvents(List<? extends List<Event>> sortedEvents) {
         mEvents = sortedEvents;
         if (sortedEvents == null) {
             return;
@@ -719,7 +848,7 @@ public class MonthWeekEventsView extends SimpleWeekView {
         }
 
         int day = -1;
-        for (ArrayList<Event> eventDay : mEvents) {
+        for (List<Event> eventDay : mEvents) {
             day++;
             if (eventDay == null || eventDay.size() == 0) {
                 continue;
@@ -965,7 +1094,8 @@ public class MonthWeekEventsView extends SimpleWeekView {
     protected void drawDNA(Canvas canvas) {
         // Draw event and conflict times
         if (mDna != null) {
-            for (Utils.DNAStrand strand : mDna.values()) {
+            for (int i = 0; i < mDna.size(); i++) {
+                Utils.DNAStrand strand = mDna.valueAt(i);
                 if (strand.color == CONFLICT_COLOR || strand.points == null
                         || strand.points.length == 0) {
                     continue;
@@ -1071,7 +1201,7 @@ public class MonthWeekEventsView extends SimpleWeekView {
                     int dayStart = SPACING_WEEK_NUMBER + mPadding;
                     int dayPosition = (int) ((event.getX() - dayStart) * mNumDays / (mWidth
                             - dayStart - mPadding));
-                    ArrayList<Event> events = mEvents.get(dayPosition);
+                    List<Event> events = mEvents.get(dayPosition);
                     List<CharSequence> text = accessEvent.getText();
                     for (Event e : events) {
                         text.add(e.getTitleAndLocation() + ". ");
@@ -0,0 +1,493 @@
+package com.example.calendarview;
+
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Expands the RRULE/RDATE/EXDATE of an event into the start times of its
+ * instances within a range.
+ *
+ * Supports the rules calendars actually produce: FREQ DAILY, WEEKLY,
+ * MONTHLY and YEARLY with INTERVAL, COUNT, UNTIL, WKST, BYDAY (with
+ * ordinals for MONTHLY and YEARLY), BYMONTHDAY and BYMONTH. Rules using
+ * anything else are rejected with an IllegalArgumentException so the caller
+ * can fall back to the single DTSTART instance.
+ */
+/* package */ class RecurrenceExpander {
+    // Stops runaway rules that never produce an instance
+    private static final int MAX_PERIODS = 100000;
+
+    private static final int DAILY = 0;
+    private static final int WEEKLY = 1;
+    private static final int MONTHLY = 2;
+    private static final int YEARLY = 3;
+
+    private static final String[] WEEKDAYS = {"SU", "MO", "TU", "WE", "TH", "FR", "SA"};
+
+    static class Rule {
+        int freq;
+        int interval = 1;
+        int count;
+        long until = Long.MAX_VALUE;
+        int weekStart = Calendar.MONDAY;
+        // BYDAY as Calendar.SUNDAY.. weekdays, each with an ordinal that is
+        // 0 for every such weekday of the period
+        int[] byDay;
+        int[] byDayOrdinal;
+        int[] byMonthDay;
+        // BYMONTH as Calendar.JANUARY.. months
+        int[] byMonth;
+    }
+
+    /**
+     * Collects the instances that fall in the requested range.
+     */
+    private static class Collector {
+        final long rangeBegin;
+        final long rangeEnd;
+        final long[] excluded;
+        long[] times = new long[16];
+        int size;
+        // Instances the rule has produced, in or out of range, for COUNT
+        int ruleInstances;
+
+        Collector(long rangeBegin, long rangeEnd, long[] excluded) {
+            this.rangeBegin = rangeBegin;
+            this.rangeEnd = rangeEnd;
+            this.excluded = excluded;
+        }
+
+        void add(long time) {
+            if (time < rangeBegin || time >= rangeEnd
+                    || Arrays.binarySearch(excluded, time) >= 0) {
+                return;
+            }
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+            }
+            times[size++] = time;
+        }
+
+        long[] toSortedArray() {
+            long[] result = Arrays.copyOf(times, size);
+            Arrays.sort(result);
+            // RDATEs may repeat instances of the rule
+            int unique = 0;
+            for (int i = 0; i < result.length; i++) {
+                if (unique == 0 || result[unique - 1] != result[i]) {
+                    result[unique++] = result[i];
+                }
+            }
+            return unique == result.length ? result : Arrays.copyOf(result, unique);
+        }
+    }
+
+    static boolean isRecurring(String rrule, String rdate) {
+        return !TextUtils.isEmpty(rrule) || !TextUtils.isEmpty(rdate);
+    }
+
+    /**
+     * Returns the sorted start times of the instances of the series that
+     * start in [rangeBegin, rangeEnd). COUNT is counted from dtStart, RDATEs
+     * add to the rule's instances and EXDATEs remove from both.
+     *
+     * @param tzId the zone the rule is evaluated in, instances keep their
+     *            wall clock time in this zone across DST changes
+     */
+    static long[] expand(long dtStart, String tzId, String rrule, String rdate, String exdate,
+            long rangeBegin, long rangeEnd) {
+        TimeZone tz = TimeZone.getTimeZone(TextUtils.isEmpty(tzId) ? Time.TIMEZONE_UTC : tzId);
+        long[] excluded = parseDateList(exdate, tz.getID());
+        Arrays.sort(excluded);
+
+        Collector out = new Collector(rangeBegin, rangeEnd, excluded);
+        if (!TextUtils.isEmpty(rrule)) {
+            expandRule(parseRule(rrule, tz.getID()), dtStart, tz, out);
+        }
+        for (long time : parseDateList(rdate, tz.getID())) {
+            out.add(time);
+        }
+        return out.toSortedArray();
+    }
+
+    /**
+     * Parses an RFC 2445 recurrence rule such as
+     * "FREQ=WEEKLY;INTERVAL=2;BYDAY=MO,WE".
+     *
+     * @param tzId the zone of the event, for an UNTIL without one
+     */
+    static Rule parseRule(String rrule, String tzId) {
+        Rule rule = new Rule();
+        boolean hasFreq = false;
+        for (String part : rrule.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Bad rule part " + part);
+            }
+            String name = part.substring(0, eq).toUpperCase();
+            String value = part.substring(eq + 1).toUpperCase();
+            if (name.equals("FREQ")) {
+                hasFreq = true;
+                if (value.equals("DAILY")) {
+                    rule.freq = DAILY;
+                } else if (value.equals("WEEKLY")) {
+                    rule.freq = WEEKLY;
+                } else if (value.equals("MONTHLY")) {
+                    rule.freq = MONTHLY;
+                } else if (value.equals("YEARLY")) {
+                    rule.freq = YEARLY;
+                } else {
+                    throw new IllegalArgumentException("Unsupported FREQ " + value);
+                }
+            } else if (name.equals("INTERVAL")) {
+                rule.interval = Math.max(1, Integer.parseInt(value));
+            } else if (name.equals("COUNT")) {
+                rule.count = Integer.parseInt(value);
+            } else if (name.equals("UNTIL")) {
+                rule.until = parseUntil(value, tzId);
+            } else if (name.equals("WKST")) {
+                rule.weekStart = parseWeekday(value);
+            } else if (name.equals("BYDAY")) {
+                String[] days = value.split(",");
+                rule.byDay = new int[days.length];
+                rule.byDayOrdinal = new int[days.length];
+                for (int i = 0; i < days.length; i++) {
+                    String day = days[i];
+                    int split = day.length() - 2;
+                    rule.byDay[i] = parseWeekday(day.substring(split));
+                    if (split > 0) {
+                        String ordinal = day.substring(0, split);
+                        if (ordinal.startsWith("+")) {
+                            ordinal = ordinal.substring(1);
+                        }
+                        rule.byDayOrdinal[i] = Integer.parseInt(ordinal);
+                    }
+                }
+            } else if (name.equals("BYMONTHDAY")) {
+                rule.byMonthDay = parseInts(value);
+            } else if (name.equals("BYMONTH")) {
+                rule.byMonth = parseInts(value);
+                for (int i = 0; i < rule.byMonth.length; i++) {
+                    rule.byMonth[i] -= 1;
+                }
+                Arrays.sort(rule.byMonth);
+            } else {
+                throw new IllegalArgumentException("Unsupported rule part " + name);
+            }
+        }
+        if (!hasFreq) {
+            throw new IllegalArgumentException("No FREQ in " + rrule);
+        }
+        if (rule.byDayOrdinal != null && (rule.freq == DAILY || rule.freq == WEEKLY)) {
+            for (int ordinal : rule.byDayOrdinal) {
+                if (ordinal != 0) {
+                    throw new IllegalArgumentException("BYDAY ordinals need MONTHLY or YEARLY");
+                }
+            }
+        }
+        if (rule.freq == YEARLY && rule.byDay != null && rule.byMonth == null) {
+            throw new IllegalArgumentException("YEARLY BYDAY needs BYMONTH");
+        }
+        return rule;
+    }
+
+    /**
+     * Parses an RFC 2445 duration such as "PT1H", "P1D" or "P3600S" into
+     * millis.
+     */
+    static long parseDuration(String duration) {
+        int i = 0;
+        int sign = 1;
+        if (duration.charAt(i) == '+' || duration.charAt(i) == '-') {
+            sign = duration.charAt(i) == '-' ? -1 : 1;
+            i++;
+        }
+        if (duration.charAt(i++) != 'P') {
+            throw new IllegalArgumentException("Bad duration " + duration);
+        }
+        long millis = 0;
+        long n = 0;
+        for (; i < duration.length(); i++) {
+            char c = duration.charAt(i);
+            if (c >= '0' && c <= '9') {
+                n = n * 10 + (c - '0');
+                continue;
+            }
+            switch (c) {
+                case 'W': millis += n * DateUtils.WEEK_IN_MILLIS; break;
+                case 'D': millis += n * DateUtils.DAY_IN_MILLIS; break;
+                case 'H': millis += n * DateUtils.HOUR_IN_MILLIS; break;
+                case 'M': millis += n * DateUtils.MINUTE_IN_MILLIS; break;
+                case 'S': millis += n * DateUtils.SECOND_IN_MILLIS; break;
+                case 'T': break;
+                default:
+                    throw new IllegalArgumentException("Bad duration " + duration);
+            }
+            n = 0;
+        }
+        return sign * millis;
+    }
+
+    private static void expandRule(Rule rule, long dtStart, TimeZone tz, Collector out) {
+        Calendar cal = Calendar.getInstance(tz);
+        cal.setTimeInMillis(dtStart);
+        int year = cal.get(Calendar.YEAR);
+        int month = cal.get(Calendar.MONTH);
+        int day = cal.get(Calendar.DAY_OF_MONTH);
+        int weekday = cal.get(Calendar.DAY_OF_WEEK);
+        int[] time = {cal.get(Calendar.HOUR_OF_DAY), cal.get(Calendar.MINUTE),
+                cal.get(Calendar.SECOND)};
+
+        // Candidate days of a period, as days of the month that may run past
+        // the end of it. The Calendar is lenient and rolls them over.
+        int[] days = new int[62];
+        for (int period = 0; period < MAX_PERIODS; period += rule.interval) {
+            switch (rule.freq) {
+                case DAILY:
+                    days[0] = day + period;
+                    if (!emitPeriod(rule, cal, year, month, days, 1, time, dtStart, out)) {
+                        return;
+                    }
+                    break;
+                case WEEKLY: {
+                    int weekFirst = day - (weekday - rule.weekStart + 7) % 7 + 7 * period;
+                    int numDays = 0;
+                    if (rule.byDay == null) {
+                        days[numDays++] = weekFirst + (weekday - rule.weekStart + 7) % 7;
+                    } else {
+                        for (int d : rule.byDay) {
+                            days[numDays++] = weekFirst + (d - rule.weekStart + 7) % 7;
+                        }
+                    }
+                    if (!emitPeriod(rule, cal, year, month, days, numDays, time, dtStart, out)) {
+                        return;
+                    }
+                    break;
+                }
+                case MONTHLY: {
+                    int numDays = monthDays(rule, cal, year, month + period, day, days);
+                    if (!emitPeriod(rule, cal, year, month + period, days, numDays, time, dtStart,
+                            out)) {
+                        return;
+                    }
+                    break;
+                }
+                case YEARLY:
+                    if (rule.byMonth == null) {
+                        int numDays = monthDays(rule, cal, year + period, month, day, days);
+                        if (!emitPeriod(rule, cal, year + period, month, days, numDays, time,
+                                dtStart, out)) {
+                            return;
+                        }
+                    } else {
+                        for (int m : rule.byMonth) {
+                            int numDays = monthDays(rule, cal, year + period, m, day, days);
+                            if (!emitPeriod(rule, cal, year + period, m, days, numDays, time,
+                                    dtStart, out)) {
+                                return;
+                            }
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Emits the candidates of one period in order. Returns false once the
+     * series has ended or has passed the end of the range.
+     */
+    private static boolean emitPeriod(Rule rule, Calendar cal, int year, int month, int[] days,
+            int numDays, int[] time, long dtStart, Collector out) {
+        Arrays.sort(days, 0, numDays);
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0 && days[i] == days[i - 1]) {
+                continue;
+            }
+            cal.clear();
+            cal.set(year, month, days[i], time[0], time[1], time[2]);
+            long start = cal.getTimeInMillis();
+            if (start < dtStart) {
+                continue;
+            }
+            if (start > rule.until || start >= out.rangeEnd) {
+                return false;
+            }
+            if (!matchesFilters(rule, cal)) {
+                continue;
+            }
+            if (rule.count > 0 && out.ruleInstances >= rule.count) {
+                return false;
+            }
+            out.ruleInstances++;
+            out.add(start);
+        }
+        return rule.count <= 0 || out.ruleInstances < rule.count;
+    }
+
+    /**
+     * Fills days with the candidate days of the given month and returns how
+     * many there are.
+     */
+    private static int monthDays(Rule rule, Calendar cal, int year, int month, int day,
+            int[] days) {
+        cal.clear();
+        cal.set(year, month, 1);
+        int daysInMonth = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+        int firstWeekday = cal.get(Calendar.DAY_OF_WEEK);
+        int numDays = 0;
+        if (rule.byMonthDay != null) {
+            for (int value : rule.byMonthDay) {
+                int d = value > 0 ? value : daysInMonth + 1 + value;
+                if (d >= 1 && d <= daysInMonth) {
+                    days[numDays++] = d;
+                }
+            }
+        } else if (rule.byDay != null) {
+            for (int i = 0; i < rule.byDay.length; i++) {
+                int first = 1 + (rule.byDay[i] - firstWeekday + 7) % 7;
+                int ordinal = rule.byDayOrdinal[i];
+                if (ordinal == 0) {
+                    for (int d = first; d <= daysInMonth && numDays < days.length; d += 7) {
+                        days[numDays++] = d;
+                    }
+                } else if (ordinal > 0) {
+                    int d = first + 7 * (ordinal - 1);
+                    if (d <= daysInMonth) {
+                        days[numDays++] = d;
+                    }
+                } else {
+                    int last = first + 7 * ((daysInMonth - first) / 7);
+                    int d = last + 7 * (ordinal + 1);
+                    if (d >= 1) {
+                        days[numDays++] = d;
+                    }
+                }
+            }
+        } else if (day <= daysInMonth) {
+            // Months without this day are skipped, as RFC 2445 asks
+            days[numDays++] = day;
+        }
+        return numDays;
+    }
+
+    // BY* parts that limit the candidates rather than produce them
+    private static boolean matchesFilters(Rule rule, Calendar cal) {
+        if (rule.byMonth != null && !contains(rule.byMonth, cal.get(Calendar.MONTH))) {
+            return false;
+        }
+        int weekday = cal.get(Calendar.DAY_OF_WEEK);
+        if (rule.freq == DAILY || rule.freq == WEEKLY) {
+            if (rule.byMonthDay != null) {
+                int day = cal.get(Calendar.DAY_OF_MONTH);
+                int fromEnd = day - cal.getActualMaximum(Calendar.DAY_OF_MONTH) - 1;
+                if (!contains(rule.byMonthDay, day) && !contains(rule.byMonthDay, fromEnd)) {
+                    return false;
+                }
+            }
+            if (rule.freq == DAILY && rule.byDay != null && !contains(rule.byDay, weekday)) {
+                return false;
+            }
+        } else if (rule.byMonthDay != null && rule.byDay != null
+                && !contains(rule.byDay, weekday)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses an RDATE or EXDATE value. Values may start with a TZID=...;
+     * or VALUE=...; prefix and hold several dates separated by commas, and
+     * groups may be separated by newlines.
+     */
+    static long[] parseDateList(String list, String tzId) {
+        if (TextUtils.isEmpty(list)) {
+            return new long[0];
+        }
+        long[] times = new long[8];
+        int size = 0;
+        for (String line : list.split("\n")) {
+            String zone = tzId;
+            int semi = line.lastIndexOf(';');
+            if (semi >= 0) {
+                for (String param : line.substring(0, semi).split(";")) {
+                    if (param.startsWith("TZID=")) {
+                        zone = param.substring(5);
+                    }
+                }
+                line = line.substring(semi + 1);
+            }
+            for (String value : line.split(",")) {
+                value = value.trim();
+                if (value.length() == 0) {
+                    continue;
+                }
+                if (size == times.length) {
+                    times = Arrays.copyOf(times, size * 2);
+                }
+                times[size++] = parseDate(value, zone);
+            }
+        }
+        return Arrays.copyOf(times, size);
+    }
+
+    private static long parseDate(String value, String tzId) {
+        Time time = new Time(tzId);
+        // Values ending in Z switch the Time to UTC
+        time.parse(value);
+        return time.toMillis(false);
+    }
+
+    /**
+     * Returns the last time an UNTIL value lets an instance start at. A
+     * value ending in Z is a UTC time and one without is in the event's
+     * zone. A date alone takes in the whole of that day in the event's zone.
+     */
+    private static long parseUntil(String value, String tzId) {
+        Time time = new Time(tzId);
+        time.parse(value);
+        if (!time.allDay) {
+            return time.toMillis(false);
+        }
+        // One before the next midnight, whatever DST does to the day
+        time.allDay = false;
+        time.monthDay++;
+        time.hour = 0;
+        time.minute = 0;
+        time.second = 0;
+        return time.toMillis(false) - 1;
+    }
+
+    private static int parseWeekday(String value) {
+        for (int i = 0; i < WEEKDAYS.length; i++) {
+            if (WEEKDAYS[i].equals(value)) {
+                return Calendar.SUNDAY + i;
+            }
+        }
+        throw new IllegalArgumentException("Bad weekday " + value);
+    }
+
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].startsWith("+") ? parts[i].substring(1) : parts[i];
+            values[i] = Integer.parseInt(part);
+        }
+        return values;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -41,16 +41,14 @@ import android.text.format.DateFormat;
 import android.text.format.DateUtils;
 import android.text.format.Time;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.SearchView;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Formatter;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -678,13 +676,104 @@ public class Utils {
         int count;
     }
 
-    // A segment is a single continuous length of time occupied by a single
-    // color. Segments should never span multiple days.
-    private static class DNASegment {
-        int startMinute; // in minutes since the start of the week
-        int endMinute;
-        int color; // Calendar color or black for conflicts
-        int day; // quick reference to the day this segment is on
+    // Segments in time order, stored column-wise in growable primitive
+    // arrays. A segment is a single continuous length of time occupied by a
+    // single color. Segments should never span multiple days.
+    private static class DNASegmentBuffer {
+        int[] startMinute = new int[0]; // in minutes since the start of the week
+        int[] endMinute = new int[0];
+        int[] color = new int[0]; // Calendar color or black for conflicts
+        int[] day = new int[0]; // quick reference to the day this segment is on
+        int size;
+
+        // Index of one segment that createDNAStrands() keeps an eye on while
+        // segments are inserted and removed around it. If it gets removed
+        // its last end minute is kept in mMarkedEndMinute.
+        private int mMark;
+        private int mMarkedEndMinute;
+
+        void clear() {
+            size = 0;
+            mMark = -1;
+        }
+
+        /**
+         * Inserts an uninitialized segment at index and returns index.
+         */
+        int insert(int index) {
+            ensureCapacity(size + 1);
+            int tail = size - index;
+            if (tail > 0) {
+                System.arraycopy(startMinute, index, startMinute, index + 1, tail);
+                System.arraycopy(endMinute, index, endMinute, index + 1, tail);
+                System.arraycopy(color, index, color, index + 1, tail);
+                System.arraycopy(day, index, day, index + 1, tail);
+            }
+            size++;
+            if (mMark >= index) {
+                mMark++;
+            }
+            return index;
+        }
+
+        int add() {
+            return insert(size);
+        }
+
+        void remove(int index) {
+            if (mMark == index) {
+                mMarkedEndMinute = endMinute[index];
+                mMark = -1;
+            } else if (mMark > index) {
+                mMark--;
+            }
+            int tail = size - index - 1;
+            if (tail > 0) {
+                System.arraycopy(startMinute, index + 1, startMinute, index, tail);
+                System.arraycopy(endMinute, index + 1, endMinute, index, tail);
+                System.arraycopy(color, index + 1, color, index, tail);
+                System.arraycopy(day, index + 1, day, index, tail);
+            }
+            size--;
+        }
+
+        void mark(int index) {
+            mMark = index;
+        }
+
+        /**
+         * Returns the end minute of the marked segment, as of when it was
+         * removed if it no longer exists.
+         */
+        int markedEndMinute() {
+            return mMark >= 0 ? endMinute[mMark] : mMarkedEndMinute;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= startMinute.length) {
+                return;
+            }
+            int newCapacity = Math.max(capacity, Math.max(startMinute.length * 2, 64));
+            sSegmentsAllocated += newCapacity - startMinute.length;
+            startMinute = Arrays.copyOf(startMinute, newCapacity);
+            endMinute = Arrays.copyOf(endMinute, newCapacity);
+            color = Arrays.copyOf(color, newCapacity);
+            day = Arrays.copyOf(day, newCapacity);
+        }
+    }
+
+    // The segments are only needed while createDNAStrands() runs, so one
+    // buffer is reused for every call. Only used from the UI thread.
+    private static final DNASegmentBuffer sSegments = new DNASegmentBuffer();
+    private static long sSegmentsAllocated;
+
+    /**
+     * Returns the number of DNA segment slots that had to be allocated so
+     * far. This stays flat once the segment buffer has grown to fit the
+     * busiest week seen.
+     */
+    public static long getDNASegmentAllocationCount() {
+        return sSegmentsAllocated;
     }
 
     /**
@@ -693,7 +782,7 @@ public class Utils {
      * range of days from firstJulianDay to firstJulianDay + dayXs.length - 1.
      * The algorithm goes over all the events and creates a set of segments
      * ordered by start time. This list of segments is then converted into a
-     * HashMap of strands which contain the draw points and are organized by
+     * map of strands which contain the draw points and are organized by
      * color. The strands can then be drawn by setting the paint color to each
      * strand's color and calling drawLines on its set of points. The points are
      * set up using the following parameters.
@@ -716,7 +805,7 @@ public class Utils {
      * @param conflictColor the color to use for conflicts
      * @return
      */
-    public static HashMap<Integer, DNAStrand> createDNAStrands(int firstJulianDay,
+    public static SparseArray<DNAStrand> createDNAStrands(int firstJulianDay,
             ArrayList<Event> events, int top, int bottom, int minPixels, int[] dayXs,
             Context context) {
 
@@ -742,8 +831,9 @@ public class Utils {
             return null;
         }
 
-        LinkedList<DNASegment> segments = new LinkedList<DNASegment>();
-        HashMap<Integer, DNAStrand> strands = new HashMap<Integer, DNAStrand>();
+        DNASegmentBuffer segments = sSegments;
+        segments.clear();
+        SparseArray<DNAStrand> strands = new SparseArray<DNAStrand>();
         // add a black strand by default, other colors will get added in
         // the loop
         DNAStrand blackStrand = new DNAStrand();
@@ -760,7 +850,7 @@ public class Utils {
         int minOtherMinutes = minMinutes * 5 / 2;
         int lastJulianDay = firstJulianDay + dayXs.length - 1;
 
-        Event event = new Event();
+        Event event = Event.newInstance();
         // Go through all the events for the week
         for (Event currEvent : events) {
             // if this event is outside the weeks range skip it
@@ -816,13 +906,15 @@ public class Utils {
             }
 
             // This handles adding the first segment
-            if (segments.size() == 0) {
+            if (segments.size == 0) {
                 addNewSegment(segments, event, strands, firstJulianDay, 0, minMinutes);
                 continue;
             }
             // Now compare our current start time to the end time of the last
-            // segment in the list
-            DNASegment lastSegment = segments.getLast();
+            // segment in the list. Keep track of that segment while the list
+            // changes underneath it.
+            segments.mark(segments.size - 1);
+            int lastSegmentEnd = segments.markedEndMinute();
             int startMinute = (event.startDay - firstJulianDay) * DAY_IN_MINUTES + event.startTime;
             int endMinute = Math.max((event.endDay - firstJulianDay) * DAY_IN_MINUTES
                     + event.endTime, startMinute + minMinutes);
@@ -836,77 +928,79 @@ public class Utils {
             // If we start before the last segment in the list ends we need to
             // start going through the list as this may conflict with other
             // events
-            if (startMinute < lastSegment.endMinute) {
-                int i = segments.size();
+            if (startMinute < lastSegmentEnd) {
+                int i = segments.size;
                 // find the last segment this event intersects with
-                while (--i >= 0 && endMinute < segments.get(i).startMinute);
+                while (--i >= 0 && endMinute < segments.startMinute[i]);
 
-                DNASegment currSegment;
+                int curr;
                 // for each segment this event intersects with
-                for (; i >= 0 && startMinute <= (currSegment = segments.get(i)).endMinute; i--) {
+                for (; i >= 0 && startMinute <= segments.endMinute[curr = i]; i--) {
                     // if the segment is already a conflict ignore it
-                    if (currSegment.color == CONFLICT_COLOR) {
+                    if (segments.color[curr] == CONFLICT_COLOR) {
                         continue;
                     }
                     // if the event ends before the segment and wouldn't create
                     // a segment that is too small split off the right side
-                    if (endMinute < currSegment.endMinute - minMinutes) {
-                        DNASegment rhs = new DNASegment();
-                        rhs.endMinute = currSegment.endMinute;
-                        rhs.color = currSegment.color;
-                        rhs.startMinute = endMinute + 1;
-                        rhs.day = currSegment.day;
-                        currSegment.endMinute = endMinute;
-                        segments.add(i + 1, rhs);
-                        strands.get(rhs.color).count++;
+                    if (endMinute < segments.endMinute[curr] - minMinutes) {
+                        int rhs = segments.insert(i + 1);
+                        segments.endMinute[rhs] = segments.endMinute[curr];
+                        segments.color[rhs] = segments.color[curr];
+                        segments.startMinute[rhs] = endMinute + 1;
+                        segments.day[rhs] = segments.day[curr];
+                        segments.endMinute[curr] = endMinute;
+                        strands.get(segments.color[rhs]).count++;
                         if (DEBUG) {
-                            Log.d(TAG, "Added rhs, curr:" + currSegment.toString() + " i:"
-                                    + segments.get(i).toString());
+                            Log.d(TAG, "Added rhs at " + rhs + ", curr:" + curr);
                         }
                     }
                     // if the event starts after the segment and wouldn't create
                     // a segment that is too small split off the left side
-                    if (startMinute > currSegment.startMinute + minMinutes) {
-                        DNASegment lhs = new DNASegment();
-                        lhs.startMinute = currSegment.startMinute;
-                        lhs.color = currSegment.color;
-                        lhs.endMinute = startMinute - 1;
-                        lhs.day = currSegment.day;
-                        currSegment.startMinute = startMinute;
-                        // increment i so that we are at the right position when
-                        // referencing the segments to the right and left of the
-                        // current segment.
-                        segments.add(i++, lhs);
-                        strands.get(lhs.color).count++;
+                    if (startMinute > segments.startMinute[curr] + minMinutes) {
+                        int lhs = segments.insert(i);
+                        // the current segment moved one to the right; point
+                        // i at it again so that we are at the right position
+                        // when referencing the segments to the right and
+                        // left of the current segment.
+                        curr = ++i;
+                        segments.startMinute[lhs] = segments.startMinute[curr];
+                        segments.color[lhs] = segments.color[curr];
+                        segments.endMinute[lhs] = startMinute - 1;
+                        segments.day[lhs] = segments.day[curr];
+                        segments.startMinute[curr] = startMinute;
+                        strands.get(segments.color[lhs]).count++;
                         if (DEBUG) {
-                            Log.d(TAG, "Added lhs, curr:" + currSegment.toString() + " i:"
-                                    + segments.get(i).toString());
+                            Log.d(TAG, "Added lhs at " + lhs + ", curr:" + curr);
                         }
                     }
                     // if the right side is black merge this with the segment to
                     // the right if they're on the same day and overlap
-                    if (i + 1 < segments.size()) {
-                        DNASegment rhs = segments.get(i + 1);
-                        if (rhs.color == CONFLICT_COLOR && currSegment.day == rhs.day
-                                && rhs.startMinute <= currSegment.endMinute + 1) {
-                            rhs.startMinute = Math.min(currSegment.startMinute, rhs.startMinute);
-                            segments.remove(currSegment);
-                            strands.get(currSegment.color).count--;
-                            // point at the new current segment
-                            currSegment = rhs;
+                    if (i + 1 < segments.size) {
+                        int rhs = i + 1;
+                        if (segments.color[rhs] == CONFLICT_COLOR
+                                && segments.day[curr] == segments.day[rhs]
+                                && segments.startMinute[rhs] <= segments.endMinute[curr] + 1) {
+                            segments.startMinute[rhs] = Math.min(segments.startMinute[curr],
+                                    segments.startMinute[rhs]);
+                            strands.get(segments.color[curr]).count--;
+                            segments.remove(curr);
+                            // the segment to the right slid into the current
+                            // position and is the new current segment
                         }
                     }
                     // if the left side is black merge this with the segment to
                     // the left if they're on the same day and overlap
                     if (i - 1 >= 0) {
-                        DNASegment lhs = segments.get(i - 1);
-                        if (lhs.color == CONFLICT_COLOR && currSegment.day == lhs.day
-                                && lhs.endMinute >= currSegment.startMinute - 1) {
-                            lhs.endMinute = Math.max(currSegment.endMinute, lhs.endMinute);
-                            segments.remove(currSegment);
-                            strands.get(currSegment.color).count--;
+                        int lhs = i - 1;
+                        if (segments.color[lhs] == CONFLICT_COLOR
+                                && segments.day[curr] == segments.day[lhs]
+                                && segments.endMinute[lhs] >= segments.startMinute[curr] - 1) {
+                            segments.endMinute[lhs] = Math.max(segments.endMinute[curr],
+                                    segments.endMinute[lhs]);
+                            strands.get(segments.color[curr]).count--;
+                            segments.remove(curr);
                             // point at the new current segment
-                            currSegment = lhs;
+                            curr = lhs;
                             // point i at the new current segment in case new
                             // code is added
                             i--;
@@ -915,26 +1009,28 @@ public class Utils {
                     // if we're still not black, decrement the count for the
                     // color being removed, change this to black, and increment
                     // the black count
-                    if (currSegment.color != CONFLICT_COLOR) {
-                        strands.get(currSegment.color).count--;
-                        currSegment.color = CONFLICT_COLOR;
+                    if (segments.color[curr] != CONFLICT_COLOR) {
+                        strands.get(segments.color[curr]).count--;
+                        segments.color[curr] = CONFLICT_COLOR;
                         strands.get(CONFLICT_COLOR).count++;
                     }
                 }
 
+                lastSegmentEnd = segments.markedEndMinute();
             }
             // If this event extends beyond the last segment add a new segment
-            if (endMinute > lastSegment.endMinute) {
-                addNewSegment(segments, event, strands, firstJulianDay, lastSegment.endMinute,
+            if (endMinute > lastSegmentEnd) {
+                addNewSegment(segments, event, strands, firstJulianDay, lastSegmentEnd,
                         minMinutes);
             }
         }
         weaveDNAStrands(segments, firstJulianDay, strands, top, bottom, dayXs);
+        Event.recycle(event);
         return strands;
     }
 
     // This figures out allDay colors as allDay events are found
-    private static void addAllDayToStrands(Event event, HashMap<Integer, DNAStrand> strands,
+    private static void addAllDayToStrands(Event event, SparseArray<DNAStrand> strands,
             int firstJulianDay, int numDays) {
         DNAStrand strand = getOrCreateStrand(strands, CONFLICT_COLOR);
         // if we haven't initialized the allDay portion create it now
@@ -957,29 +1053,28 @@ public class Utils {
 
     // This processes all the segments, sorts them by color, and generates a
     // list of points to draw
-    private static void weaveDNAStrands(LinkedList<DNASegment> segments, int firstJulianDay,
-            HashMap<Integer, DNAStrand> strands, int top, int bottom, int[] dayXs) {
+    private static void weaveDNAStrands(DNASegmentBuffer segments, int firstJulianDay,
+            SparseArray<DNAStrand> strands, int top, int bottom, int[] dayXs) {
         // First, get rid of any colors that ended up with no segments
-        Iterator<DNAStrand> strandIterator = strands.values().iterator();
-        while (strandIterator.hasNext()) {
-            DNAStrand strand = strandIterator.next();
+        for (int i = strands.size() - 1; i >= 0; i--) {
+            DNAStrand strand = strands.valueAt(i);
             if (strand.count < 1 && strand.allDays == null) {
-                strandIterator.remove();
+                strands.removeAt(i);
                 continue;
             }
             strand.points = new float[strand.count * 4];
             strand.position = 0;
         }
+        int height = bottom - top;
+        int workDayHeight = height * 3 / 4;
+        int remainderHeight = (height - workDayHeight) / 2;
         // Go through each segment and compute its points
-        for (DNASegment segment : segments) {
+        for (int i = 0; i < segments.size; i++) {
             // Add the points to the strand of that color
-            DNAStrand strand = strands.get(segment.color);
-            int dayIndex = segment.day - firstJulianDay;
-            int dayStartMinute = segment.startMinute % DAY_IN_MINUTES;
-            int dayEndMinute = segment.endMinute % DAY_IN_MINUTES;
-            int height = bottom - top;
-            int workDayHeight = height * 3 / 4;
-            int remainderHeight = (height - workDayHeight) / 2;
+            DNAStrand strand = strands.get(segments.color[i]);
+            int dayIndex = segments.day[i] - firstJulianDay;
+            int dayStartMinute = segments.startMinute[i] % DAY_IN_MINUTES;
+            int dayEndMinute = segments.endMinute[i] % DAY_IN_MINUTES;
 
             int x = dayXs[dayIndex];
             int y0 = 0;
@@ -988,8 +1083,9 @@ public class Utils {
             y0 = top + getPixelOffsetFromMinutes(dayStartMinute, workDayHeight, remainderHeight);
             y1 = top + getPixelOffsetFromMinutes(dayEndMinute, workDayHeight, remainderHeight);
             if (DEBUG) {
-                Log.d(TAG, "Adding " + Integer.toHexString(segment.color) + " at x,y0,y1: " + x
-                        + " " + y0 + " " + y1 + " for " + dayStartMinute + " " + dayEndMinute);
+                Log.d(TAG, "Adding " + Integer.toHexString(segments.color[i]) + " at x,y0,y1: "
+                        + x + " " + y0 + " " + y1 + " for " + dayStartMinute + " "
+                        + dayEndMinute);
             }
             strand.points[strand.position++] = x;
             strand.points[strand.position++] = y0;
@@ -1021,14 +1117,16 @@ public class Utils {
      * Add a new segment based on the event provided. This will handle splitting
      * segments across day boundaries and ensures a minimum size for segments.
      */
-    private static void addNewSegment(LinkedList<DNASegment> segments, Event event,
-            HashMap<Integer, DNAStrand> strands, int firstJulianDay, int minStart, int minMinutes) {
+    private static void addNewSegment(DNASegmentBuffer segments, Event event,
+            SparseArray<DNAStrand> strands, int firstJulianDay, int minStart, int minMinutes) {
         if (event.startDay > event.endDay) {
             Log.wtf(TAG, "Event starts after it ends: " + event.toString());
         }
         // If this is a multiday event split it up by day
+        Event split = null;
         if (event.startDay != event.endDay) {
-            Event lhs = new Event();
+            Event lhs = Event.newInstance();
+            split = lhs;
             lhs.color = event.color;
             lhs.startDay = event.startDay;
             // the first day we want the start time to be the actual start time
@@ -1050,32 +1148,36 @@ public class Utils {
             event = lhs;
         }
         // Create the new segment and compute its fields
-        DNASegment segment = new DNASegment();
+        int segment = segments.add();
         int dayOffset = (event.startDay - firstJulianDay) * DAY_IN_MINUTES;
         int endOfDay = dayOffset + DAY_IN_MINUTES - 1;
         // clip the start if needed
-        segment.startMinute = Math.max(dayOffset + event.startTime, minStart);
+        int startMinute = Math.max(dayOffset + event.startTime, minStart);
         // and extend the end if it's too small, but not beyond the end of the
         // day
-        int minEnd = Math.min(segment.startMinute + minMinutes, endOfDay);
-        segment.endMinute = Math.max(dayOffset + event.endTime, minEnd);
-        if (segment.endMinute > endOfDay) {
-            segment.endMinute = endOfDay;
+        int minEnd = Math.min(startMinute + minMinutes, endOfDay);
+        int endMinute = Math.max(dayOffset + event.endTime, minEnd);
+        if (endMinute > endOfDay) {
+            endMinute = endOfDay;
         }
 
-        segment.color = event.color;
-        segment.day = event.startDay;
-        segments.add(segment);
+        segments.startMinute[segment] = startMinute;
+        segments.endMinute[segment] = endMinute;
+        segments.color[segment] = event.color;
+        segments.day[segment] = event.startDay;
+        if (split != null) {
+            Event.recycle(split);
+        }
         // increment the count for the correct color or add a new strand if we
         // don't have that color yet
-        DNAStrand strand = getOrCreateStrand(strands, segment.color);
+        DNAStrand strand = getOrCreateStrand(strands, segments.color[segment]);
         strand.count++;
     }
 
     /**
      * Try to get a strand of the given color. Create it if it doesn't exist.
      */
-    private static DNAStrand getOrCreateStrand(HashMap<Integer, DNAStrand> strands, int color) {
+    private static DNAStrand getOrCreateStrand(SparseArray<DNAStrand> strands, int color) {
         DNAStrand strand = strands.get(color);
         if (strand == null) {
             strand = new DNAStrand();